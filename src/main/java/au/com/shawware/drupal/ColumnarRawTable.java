@@ -0,0 +1,655 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Holds the raw data from a single Drupal table by column rather than by row.
+ *
+ * The column names are held once for the whole table and each column's
+ * values are held in a single array. Columns with few distinct values
+ * (eg. type, format or language) are dictionary-encoded, so each row only
+ * costs a byte or two. Columns with many distinct values fall back to
+ * holding the values directly.
+ *
+ * The rows are presented as (read-only) map views, so callers can treat
+ * this like any other raw table.
+ *
+ * A table read from a snapshot holds its columns in mapped regions of the
+ * snapshot file, from which values are read as they are asked for.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class ColumnarRawTable extends RawTable
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<String, Integer> columnIndex;
+    private final List<String> columnNames;
+    private final List<ColumnVector> columns;
+    private final List<Map<String, String>> rows;
+    private int rowCount;
+
+    public ColumnarRawTable(String database, String tableName, String type)
+    {
+        super(database, tableName, type, null);
+
+        this.columnIndex = new HashMap<>();
+        this.columnNames = new ArrayList<>();
+        this.columns = new ArrayList<>();
+        this.rows = new RowList();
+        this.rowCount = 0;
+    }
+
+    @Override
+    public List<Map<String, String>> getData()
+    {
+        return rows;
+    }
+
+    @Override
+    protected void addRow(Map<String, String> row)
+    {
+        row.forEach((name, value) -> {
+            Integer column = columnIndex.get(name);
+            if (column == null)
+            {
+                column = addColumn(name);
+            }
+            columns.get(column).set(rowCount, value);
+        });
+        rowCount++;
+        // Columns missing from this row are left null.
+        columns.forEach(column -> column.ensureSize(rowCount));
+    }
+
+    /**
+     * Releases any space only needed while the table was being built.
+     * No more rows may be added afterwards.
+     */
+    public void compact()
+    {
+        columns.forEach(ColumnVector::compact);
+    }
+
+    /**
+     * @return The number of rows in this table.
+     */
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * @return The names of this table's columns, in column order.
+     */
+    public List<String> getColumnNames()
+    {
+        return Collections.unmodifiableList(columnNames);
+    }
+
+    /**
+     * Finds the given column.
+     *
+     * @param name the column's name
+     *
+     * @return The column's index, or -1 if there is no such column.
+     */
+    public int getColumnIndex(String name)
+    {
+        Integer column = columnIndex.get(name);
+        return (column == null) ? -1 : column;
+    }
+
+    /**
+     * Retrieves a single value.
+     *
+     * @param row the row's index
+     * @param column the column's index
+     *
+     * @return The value (may be null).
+     */
+    public String getValue(int row, int column)
+    {
+        if ((row < 0) || (row >= rowCount))
+        {
+            throw new IndexOutOfBoundsException("row: " + row);
+        }
+        return columns.get(column).get(row);
+    }
+
+    /**
+     * @param column the column's index
+     *
+     * @return The column's distinct values if it is dictionary-encoded, otherwise null.
+     */
+    /*package*/ String[] getDictionary(int column)
+    {
+        return columns.get(column).getDictionary();
+    }
+
+    /**
+     * @param row the row's index
+     * @param column the column's index
+     *
+     * @return The value's index in the column's dictionary.
+     */
+    /*package*/ int getCode(int row, int column)
+    {
+        return columns.get(column).getCode(row);
+    }
+
+    /**
+     * Adds a column whose values are held directly.
+     * Used to rebuild a table that has already been encoded.
+     *
+     * @param name the column's name
+     * @param values the column's values (one per row)
+     */
+    /*package*/ void addColumn(String name, String[] values)
+    {
+        addColumn(name, ColumnVector.ofValues(values));
+    }
+
+    /**
+     * Adds a dictionary-encoded column.
+     * Used to rebuild a table that has already been encoded.
+     *
+     * @param name the column's name
+     * @param dictionary the column's distinct values
+     * @param codes each row's index into the dictionary
+     */
+    /*package*/ void addColumn(String name, String[] dictionary, byte[] codes)
+    {
+        addColumn(name, ColumnVector.ofCodes(dictionary, codes, null, codes.length));
+    }
+
+    /**
+     * Adds a dictionary-encoded column.
+     * Used to rebuild a table that has already been encoded.
+     *
+     * @param name the column's name
+     * @param dictionary the column's distinct values
+     * @param codes each row's index into the dictionary
+     */
+    /*package*/ void addColumn(String name, String[] dictionary, char[] codes)
+    {
+        addColumn(name, ColumnVector.ofCodes(dictionary, null, codes, codes.length));
+    }
+
+    /**
+     * Adds a column whose values are held in a mapped region: one (offset,
+     * length) entry per row, then the values' UTF-8 bytes.
+     * Used to rebuild a table from a snapshot.
+     *
+     * @param name the column's name
+     * @param region the column's region
+     */
+    /*package*/ void addColumn(String name, ByteBuffer region)
+    {
+        addColumn(name, ColumnVector.ofMapped(region, rowCount));
+    }
+
+    /**
+     * Adds a dictionary-encoded column held in a mapped region: the
+     * dictionary's size and where the codes start, one (offset, length)
+     * entry per dictionary value, the values' UTF-8 bytes, then the codes.
+     * Used to rebuild a table from a snapshot.
+     *
+     * @param name the column's name
+     * @param region the column's region
+     * @param byteCodes whether the codes are bytes (rather than chars)
+     */
+    /*package*/ void addColumn(String name, ByteBuffer region, boolean byteCodes)
+    {
+        addColumn(name, ColumnVector.ofMappedCodes(region, byteCodes, rowCount));
+    }
+
+    /**
+     * Sets the number of rows in a table being rebuilt column by column.
+     *
+     * @param rowCount the number of rows
+     */
+    /*package*/ void setRowCount(int rowCount)
+    {
+        if (!columns.isEmpty() || (this.rowCount != 0))
+        {
+            throw new IllegalStateException("Table already has data: " + getTableName());
+        }
+        this.rowCount = rowCount;
+    }
+
+    private void addColumn(String name, ColumnVector vector)
+    {
+        if (vector.size != rowCount)
+        {
+            throw new IllegalArgumentException("Column " + name + " has " + vector.size + " rows rather than " + rowCount);
+        }
+        columnIndex.put(name, columns.size());
+        columnNames.add(name);
+        columns.add(vector);
+    }
+
+    private int addColumn(String name)
+    {
+        int column = columns.size();
+        ColumnVector vector = new ColumnVector();
+        vector.ensureSize(rowCount);
+        columnIndex.put(name, column);
+        columnNames.add(name);
+        columns.add(vector);
+        return column;
+    }
+
+    /**
+     * The rows of this table as maps.
+     */
+    private class RowList extends AbstractList<Map<String, String>>
+    {
+        @Override
+        public Map<String, String> get(int row)
+        {
+            if ((row < 0) || (row >= rowCount))
+            {
+                throw new IndexOutOfBoundsException("row: " + row);
+            }
+            return new RowView(row);
+        }
+
+        @Override
+        public int size()
+        {
+            return rowCount;
+        }
+    }
+
+    /**
+     * A single row of this table as a map.
+     */
+    private class RowView extends AbstractMap<String, String>
+    {
+        private final int row;
+
+        RowView(int row)
+        {
+            this.row = row;
+        }
+
+        @Override
+        public String get(Object key)
+        {
+            Integer column = columnIndex.get(key);
+            return (column == null) ? null : columns.get(column).get(row);
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return columnIndex.containsKey(key);
+        }
+
+        @Override
+        public int size()
+        {
+            return columnNames.size();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet()
+        {
+            return new AbstractSet<Entry<String, String>>()
+            {
+                @Override
+                public Iterator<Entry<String, String>> iterator()
+                {
+                    return new Iterator<Entry<String, String>>()
+                    {
+                        private int column = 0;
+
+                        @Override
+                        public boolean hasNext()
+                        {
+                            return column < columnNames.size();
+                        }
+
+                        @Override
+                        public Entry<String, String> next()
+                        {
+                            if (!hasNext())
+                            {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<>(columnNames.get(column), columns.get(column).get(row));
+                            column++;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size()
+                {
+                    return columnNames.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Holds the values of a single column.
+     *
+     * Values start out dictionary-encoded, with byte codes widening to char codes
+     * as the dictionary grows. Once a column has too many distinct values for
+     * encoding to pay, it switches to holding the values directly.
+     */
+    private static class ColumnVector
+    {
+        private static final int MAX_BYTE_CODES = 1 << 8;
+        private static final int MAX_CHAR_CODES = 1 << 16;
+        private static final int SAMPLE_SIZE = 4096;
+
+        private Map<String, Integer> lookup;
+        private List<String> dictionary;
+        private String[] dictionaryArray;
+        private byte[] byteCodes;
+        private char[] charCodes;
+        private String[] values;
+        private ByteBuffer mapped;
+        private int entries; // Where the mapped entries start
+        private int codes; // Where the mapped codes start (-1 if not encoded)
+        private boolean mappedBytes;
+        private int size;
+
+        /*
+         * Rows not set explicitly are null, so null is given the first code,
+         * which is also the default code.
+         */
+        ColumnVector()
+        {
+            this.lookup = new HashMap<>();
+            this.dictionary = new ArrayList<>();
+            this.byteCodes = new byte[INITIAL_CAPACITY];
+            this.size = 0;
+
+            dictionary.add(null);
+            lookup.put(null, 0);
+        }
+
+        static ColumnVector ofValues(String[] values)
+        {
+            ColumnVector vector = new ColumnVector();
+            vector.lookup = null;
+            vector.dictionary = null;
+            vector.byteCodes = null;
+            vector.values = values;
+            vector.size = values.length;
+            return vector;
+        }
+
+        static ColumnVector ofMapped(ByteBuffer region, int size)
+        {
+            ColumnVector vector = new ColumnVector();
+            vector.lookup = null;
+            vector.dictionary = null;
+            vector.byteCodes = null;
+            vector.mapped = region;
+            vector.entries = 0;
+            vector.codes = -1;
+            vector.size = size;
+            return vector;
+        }
+
+        /*
+         * The dictionary is decoded (and kept) a value at a time, as the
+         * values are asked for. Racing threads at worst decode a value twice.
+         */
+        static ColumnVector ofMappedCodes(ByteBuffer region, boolean byteCodes, int size)
+        {
+            ColumnVector vector = new ColumnVector();
+            vector.lookup = null;
+            vector.dictionary = null;
+            vector.byteCodes = null;
+            vector.mapped = region;
+            vector.dictionaryArray = new String[region.getInt(0)];
+            vector.codes = region.getInt(Integer.BYTES);
+            vector.entries = 2 * Integer.BYTES;
+            vector.mappedBytes = byteCodes;
+            vector.size = size;
+            return vector;
+        }
+
+        static ColumnVector ofCodes(String[] dictionary, byte[] byteCodes, char[] charCodes, int size)
+        {
+            ColumnVector vector = new ColumnVector();
+            vector.lookup = null;
+            vector.dictionary = null;
+            vector.dictionaryArray = dictionary;
+            vector.byteCodes = byteCodes;
+            vector.charCodes = charCodes;
+            vector.size = size;
+            return vector;
+        }
+
+        String get(int row)
+        {
+            if (values != null)
+            {
+                return values[row];
+            }
+            if ((mapped != null) && (codes < 0))
+            {
+                return readMapped(row);
+            }
+            return dictionaryEntry(getCode(row));
+        }
+
+        int getCode(int row)
+        {
+            if (mapped != null)
+            {
+                return mappedBytes ? (mapped.get(codes + row) & 0xFF) : mapped.getChar(codes + row * Character.BYTES);
+            }
+            return (byteCodes != null) ? (byteCodes[row] & 0xFF) : charCodes[row];
+        }
+
+        String[] getDictionary()
+        {
+            if ((values != null) || ((mapped != null) && (codes < 0)))
+            {
+                return null;
+            }
+            if (mapped != null)
+            {
+                String[] decoded = new String[dictionaryArray.length];
+                for (int code = 0; code < decoded.length; code++)
+                {
+                    decoded[code] = dictionaryEntry(code);
+                }
+                return decoded;
+            }
+            return (dictionaryArray != null) ? dictionaryArray : dictionary.toArray(new String[0]);
+        }
+
+        void set(int row, String value)
+        {
+            ensureSize(row + 1);
+            if (values != null)
+            {
+                values[row] = value;
+                return;
+            }
+            Integer code = lookup.get(value);
+            if (code == null)
+            {
+                if (!shouldEncode())
+                {
+                    decode();
+                    values[row] = value;
+                    return;
+                }
+                code = dictionary.size();
+                dictionary.add(value);
+                lookup.put(value, code);
+                if ((code == MAX_BYTE_CODES) && (byteCodes != null))
+                {
+                    widen();
+                }
+            }
+            if (byteCodes != null)
+            {
+                byteCodes[row] = (byte)code.intValue();
+            }
+            else
+            {
+                charCodes[row] = (char)code.intValue();
+            }
+        }
+
+        void ensureSize(int newSize)
+        {
+            if (newSize <= size)
+            {
+                return;
+            }
+            int capacity = capacity();
+            if (newSize > capacity)
+            {
+                int newCapacity = Math.max(newSize, capacity + (capacity >> 1));
+                if (values != null)
+                {
+                    values = Arrays.copyOf(values, newCapacity);
+                }
+                else if (byteCodes != null)
+                {
+                    byteCodes = Arrays.copyOf(byteCodes, newCapacity);
+                }
+                else
+                {
+                    charCodes = Arrays.copyOf(charCodes, newCapacity);
+                }
+            }
+            size = newSize;
+        }
+
+        void compact()
+        {
+            if (mapped != null)
+            {
+                return; // Already as compact as it gets
+            }
+            if (values != null)
+            {
+                values = Arrays.copyOf(values, size);
+            }
+            else if (dictionary != null)
+            {
+                if (byteCodes != null)
+                {
+                    byteCodes = Arrays.copyOf(byteCodes, size);
+                }
+                else
+                {
+                    charCodes = Arrays.copyOf(charCodes, size);
+                }
+                dictionaryArray = dictionary.toArray(new String[0]);
+                dictionary = null;
+                lookup = null;
+            }
+        }
+
+        private String dictionaryEntry(int code)
+        {
+            if (mapped != null)
+            {
+                String value = dictionaryArray[code];
+                if (value == null)
+                {
+                    value = readMapped(code);
+                    dictionaryArray[code] = value;
+                }
+                return value;
+            }
+            return (dictionaryArray != null) ? dictionaryArray[code] : dictionary.get(code);
+        }
+
+        private String readMapped(int index)
+        {
+            int entry = entries + index * 2 * Integer.BYTES;
+            int length = mapped.getInt(entry + Integer.BYTES);
+            if (length < 0)
+            {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer source = mapped.duplicate(); // Keeps this thread-safe
+            source.position(mapped.getInt(entry));
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /*
+         * Keep encoding while the codes fit and the column looks repetitive.
+         */
+        private boolean shouldEncode()
+        {
+            int distinct = dictionary.size();
+            if (distinct >= MAX_CHAR_CODES)
+            {
+                return false;
+            }
+            return (size < SAMPLE_SIZE) || (distinct < (size >> 1));
+        }
+
+        private int capacity()
+        {
+            if (values != null)
+            {
+                return values.length;
+            }
+            return (byteCodes != null) ? byteCodes.length : charCodes.length;
+        }
+
+        private void widen()
+        {
+            charCodes = new char[byteCodes.length];
+            for (int i = 0; i < size; i++)
+            {
+                charCodes[i] = (char)(byteCodes[i] & 0xFF);
+            }
+            byteCodes = null;
+        }
+
+        private void decode()
+        {
+            String[] decoded = new String[capacity()];
+            for (int i = 0; i < size; i++)
+            {
+                decoded[i] = get(i);
+            }
+            values = decoded;
+            byteCodes = null;
+            charCodes = null;
+            dictionary = null;
+            lookup = null;
+        }
+    }
+}
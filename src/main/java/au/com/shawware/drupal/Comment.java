@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+/**
+ * Holds the basic data for a comment on a node.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class Comment extends Entity
+{
+    private final String pid;
+    private final String nid;
+    private final String uid;
+    private final String subject;
+    private final String created;
+    private final String changed;
+    private final String status;
+    private String thread;
+    private String name;
+    private String mail;
+    private String homepage;
+    private String hostname;
+
+    public Comment(String cid, String pid, String nid, String uid, String subject, String created, String changed, String status)
+    {
+        super(cid);
+        this.pid = pid;
+        this.nid = nid;
+        this.uid = uid;
+        this.subject = subject;
+        this.created = created;
+        this.changed = changed;
+        this.status = status;
+    }
+
+    /**
+     * @return The ID of the comment this comment replies to ("0" if none).
+     */
+    public String getPid()
+    {
+        return pid;
+    }
+
+    public String getNid()
+    {
+        return nid;
+    }
+
+    public String getUid()
+    {
+        return uid;
+    }
+
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    public String getCreated()
+    {
+        return created;
+    }
+
+    public String getChanged()
+    {
+        return changed;
+    }
+
+    public String getStatus()
+    {
+        return status;
+    }
+
+    public String getThread()
+    {
+        return thread;
+    }
+
+    public void setThread(String thread)
+    {
+        this.thread = thread;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public String getMail()
+    {
+        return mail;
+    }
+
+    public void setMail(String mail)
+    {
+        this.mail = mail;
+    }
+
+    public String getHomepage()
+    {
+        return homepage;
+    }
+
+    public void setHomepage(String homepage)
+    {
+        this.homepage = homepage;
+    }
+
+    public String getHostname()
+    {
+        return hostname;
+    }
+
+    public void setHostname(String hostname)
+    {
+        this.hostname = hostname;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "{ " + getId() + ", " + pid + ", " + nid + ", " + uid + ", \"" + subject + "\", " +
+                created + ", " + changed + ", " + status + ", " + thread + ", " + name + " }";
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.PrintStream;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Migrates the comments, which can far outnumber the nodes.
+ *
+ * Rather than being extracted into the model, the comments are streamed:
+ * each raw row is converted, its node renumbered and its SQL written as
+ * it is read, so only a batch of rows is held at any time.
+ *
+ * Comments on unknown nodes are dropped, along with their bodies. Their IDs
+ * are noted so the bodies can be skipped, which relies on the comment table
+ * being read before the body table (as it is in alphabetical order, the
+ * order both phpMyAdmin and mysqldump use).
+ *
+ * For a delta migration, only the comments on the updated nodes are
+ * migrated. Afterwards, the existing comments on the deleted nodes, and
+ * those on the updated nodes that are no longer there, are deleted.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class CommentMigrator extends TableWorker implements RawRowHandler
+{
+    private static final String LANG_CODE = "en";
+    private static final String NULL = "NULL";
+    private static final String COMMENT_TYPE = "comment";
+
+    private final String rawPrefix;
+    private final String database;
+    private final Map<String, String> nidMap;
+    private final SqlGenerator sql;
+    private final Map<String, String> htmlFormats;
+    private final Field bodyField;
+    private final BitSet dropped;
+    private final BitSet kept;
+    private Diagnostics diagnostics;
+    private boolean upsert;
+    private Set<String> updated;
+    private Set<String> deleted;
+    private SqlGenerator.TableWriter<Comment> entities;
+    private SqlGenerator.TableWriter<Comment> data;
+    private SqlGenerator.TableWriter<FieldValue> bodies;
+
+    /**
+     * @param rawPrefix the raw table name prefix
+     * @param database the database to generate the comments for
+     * @param prefix the generated table name prefix
+     * @param nidMap the map of old node IDs to new ones
+     * @param sql the generator to write the SQL with
+     */
+    public CommentMigrator(String rawPrefix, String database, String prefix, Map<String, String> nidMap, SqlGenerator sql)
+    {
+        super(prefix);
+
+        this.rawPrefix = rawPrefix;
+        this.database = database;
+        this.nidMap = nidMap;
+        this.sql = sql;
+        this.htmlFormats = initHtmlFormats();
+        this.bodyField = new Field("comment_body", "text");
+        this.dropped = new BitSet();
+        this.kept = new BitSet();
+        this.diagnostics = new Diagnostics();
+        this.upsert = false;
+        this.updated = null;
+        this.deleted = null;
+    }
+
+    private Map<String, String> initHtmlFormats()
+    {
+        return Map.of(
+                "1", "restricted_html",
+                "3", "full_html"
+        );
+    }
+
+    /**
+     * Sets where comments on unknown nodes are reported.
+     *
+     * @param diagnostics the diagnostics
+     *
+     * @return This migrator.
+     */
+    public CommentMigrator withDiagnostics(Diagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+        return this;
+    }
+
+    /**
+     * Sets whether comments already migrated are updated rather than
+     * inserted again, eg. for a delta migration.
+     *
+     * @param upsert whether to update existing comments
+     *
+     * @return This migrator.
+     */
+    public CommentMigrator withUpsert(boolean upsert)
+    {
+        this.upsert = upsert;
+        return this;
+    }
+
+    /**
+     * Restricts the migration to the comments on the given nodes, eg. those
+     * updated since the last run. Their existing comments that are not
+     * migrated (as they are no longer there) are deleted.
+     *
+     * @param updated the (new) IDs of the nodes whose comments to migrate, or null for all
+     *
+     * @return This migrator.
+     */
+    public CommentMigrator withUpdated(Set<String> updated)
+    {
+        this.updated = updated;
+        return this;
+    }
+
+    /**
+     * Sets the nodes whose existing comments are all to be deleted,
+     * eg. those deleted since the last run.
+     *
+     * @param deleted the (new) IDs of the nodes, or null for none
+     *
+     * @return This migrator.
+     */
+    public CommentMigrator withDeleted(Set<String> deleted)
+    {
+        this.deleted = deleted;
+        return this;
+    }
+
+    /**
+     * Declares the raw tables (and columns) this migrator reads.
+     *
+     * @param prefix the raw table name prefix
+     *
+     * @return The selection of required tables.
+     */
+    public static TableSelection getRequiredTables(String prefix)
+    {
+        return new TableSelection()
+                .include(prefix + "comment", "cid", "pid", "nid", "uid", "subject", "hostname", "created", "changed",
+                         "status", "thread", "name", "mail", "homepage")
+                .include(prefix + "field_data_comment_body", "entity_id", "delta", "comment_body_value", "comment_body_format");
+    }
+
+    /**
+     * Migrates the comments, writing the SQL as they are read.
+     *
+     * @param source reads the raw comment tables, passing their rows to the given handler
+     * @param stream the stream onto which to emit the SQL
+     */
+    public void migrate(Consumer<RawRowHandler> source, PrintStream stream)
+    {
+        sql.generateHeader(stream);
+
+        entities = sql.openTable(new Table<>(database, getTableName("comment_entity"), entityColumns()), stream, upsert);
+        data = sql.openTable(new Table<>(database, getTableName("comment_field_data"), dataColumns()), stream, upsert);
+        bodies = sql.openTable(new Table<>(database, getTableName("comment__comment_body"), bodyColumns()), stream, upsert);
+
+        source.accept(this);
+
+        entities.close();
+        data.close();
+        bodies.close();
+        deleteStale();
+
+        sql.generateFooter(stream);
+    }
+
+    /*
+     * The comments themselves are deleted last,
+     * as the others are found through them.
+     */
+    private void deleteStale()
+    {
+        Set<String> nids = new HashSet<>();
+        if (deleted != null)
+        {
+            nids.addAll(deleted);
+        }
+        if (updated != null)
+        {
+            nids.addAll(updated);
+        }
+        if (nids.isEmpty())
+        {
+            return;
+        }
+
+        String condition = SqlGenerator.generateIn("entity_id", nids);
+        if (!kept.isEmpty())
+        {
+            condition += " AND NOT " + SqlGenerator.generateIn("cid", kept.stream().mapToObj(String::valueOf).collect(toList()));
+        }
+        String stale = "SELECT `cid` FROM `" + data.getTableName() + "` WHERE " + condition;
+
+        entities.delete("`cid` IN (" + stale + ")");
+        bodies.delete("`entity_id` IN (" + stale + ")");
+        data.delete(condition);
+    }
+
+    /**
+     * @return The number of comments migrated.
+     */
+    public long getCount()
+    {
+        return (entities == null) ? 0 : entities.getCount();
+    }
+
+    @Override
+    public void addRow(String tableName, Map<String, String> row)
+    {
+        if (tableName.equals(rawPrefix + "comment"))
+        {
+            addComment(row);
+        }
+        else if (tableName.equals(rawPrefix + "field_data_comment_body"))
+        {
+            addBody(row);
+        }
+    }
+
+    private void addComment(Map<String, String> row)
+    {
+        String cid = row.get("cid");
+        String nid = nidMap.get(row.get("nid"));
+        if (nid == null)
+        {
+            diagnostics.report("Comment for unknown node", "%s on %s", cid, row.get("nid"));
+            dropped.set(Integer.parseInt(cid));
+            return;
+        }
+        if ((updated != null) && !updated.contains(nid))
+        {
+            dropped.set(Integer.parseInt(cid));
+            return;
+        }
+
+        Comment comment = new Comment(
+                cid,
+                row.get("pid"),
+                nid,
+                row.get("uid"),
+                row.get("subject"),
+                row.get("created"),
+                row.get("changed"),
+                row.get("status")
+            );
+        comment.setThread(row.get("thread"));
+        comment.setName(row.get("name"));
+        comment.setMail(row.get("mail"));
+        comment.setHomepage(row.get("homepage"));
+        comment.setHostname(row.get("hostname"));
+
+        entities.write(comment);
+        data.write(comment);
+        kept.set(Integer.parseInt(cid));
+    }
+
+    private void addBody(Map<String, String> row)
+    {
+        String cid = row.get("entity_id");
+        if (dropped.get(Integer.parseInt(cid)))
+        {
+            return;
+        }
+
+        FieldValue body = new FieldValue(cid, row.get("delta"), bodyField, row.get("comment_body_value"));
+        body.addExtra("format", row.get("comment_body_format"));
+
+        bodies.write(body);
+    }
+
+    private List<Column<Comment>> entityColumns()
+    {
+        return new Columns<Comment>()
+                .addNumeric("cid", Comment::getId)
+                .addText("comment_type", (c) -> COMMENT_TYPE)
+                .addText("uuid", (c) -> UUID.randomUUID().toString())
+                .addText("langcode", (c) -> LANG_CODE)
+                .build();
+    }
+
+    // D7 uses 0 for a comment that is not a reply, whereas D9 uses NULL.
+    private List<Column<Comment>> dataColumns()
+    {
+        return new Columns<Comment>()
+                .addNumeric("cid", Comment::getId)
+                .addText("comment_type", (c) -> COMMENT_TYPE)
+                .addText("langcode", (c) -> LANG_CODE)
+                .addNumeric("pid", (comment) -> "0".equals(comment.getPid()) ? NULL : comment.getPid())
+                .addNumeric("entity_id", Comment::getNid)
+                .addHTML("subject", Comment::getSubject)
+                .addNumeric("uid", Comment::getUid)
+                .addHTML("name", Comment::getName)
+                .addHTML("mail", Comment::getMail)
+                .addHTML("homepage", Comment::getHomepage)
+                .addText("hostname", Comment::getHostname)
+                .addNumeric("created", Comment::getCreated)
+                .addNumeric("changed", Comment::getChanged)
+                .addNumeric("status", Comment::getStatus)
+                .addText("thread", Comment::getThread)
+                .addText("entity_type", (c) -> "node")
+                .addText("field_name", (c) -> "comment")
+                .addNumeric("default_langcode", (c) -> "1")
+                .build();
+    }
+
+    private List<Column<FieldValue>> bodyColumns()
+    {
+        return new Columns<FieldValue>()
+                .addText("bundle", (v) -> COMMENT_TYPE)
+                .addNumeric("deleted", (v) -> "0")
+                .addNumeric("entity_id", FieldValue::getId)
+                .addNumeric("revision_id", FieldValue::getId)
+                .addText("langcode", (v) -> LANG_CODE)
+                .addNumeric("delta", FieldValue::getDelta)
+                .addHTML("comment_body_value", FieldValue::getValue)
+                .addText("comment_body_format", (value) -> htmlFormats.getOrDefault(value.getExtra("format"), NULL))
+                .build();
+    }
+}
@@ -8,13 +8,24 @@
 package au.com.shawware.drupal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static au.com.shawware.drupal.IntKeyedMap.toIntKeyedMap;
 import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
 
 /**
  * Extracts the data from the raw D7 data and converts it into our model.
@@ -24,9 +35,14 @@ import static java.util.stream.Collectors.toMap;
 public class DataExtractor extends TableWorker
 {
     private static final String BREAK = "<!--break-->"; // Old-school summary/body separator
+    private static final String FIELD_TABLE_PREFIX = "field_data_field_";
 
     private final Map<String, RawTable> rawData;
     private final Set<String> htmlFormats;
+    private boolean mergeJoin;
+    private Diagnostics diagnostics;
+    private Map<String, Node> sortedFrom;
+    private SortedNodes sortedNodes;
 
     public DataExtractor(String prefix, Map<String, RawTable> rawData)
     {
@@ -34,6 +50,37 @@ public class DataExtractor extends TableWorker
 
         this.rawData = rawData;
         this.htmlFormats = initHtmlFormats();
+        this.mergeJoin = false;
+        this.diagnostics = new Diagnostics();
+    }
+
+    /**
+     * Sets whether node data is joined to the nodes by merging, rather than
+     * by looking up each row's node. Merging relies on the table being
+     * ordered by node ID (as exports usually are), so the rows of a table
+     * are looked up as usual from the first one that is out of order.
+     *
+     * @param mergeJoin whether to merge join where possible
+     *
+     * @return This extractor.
+     */
+    public DataExtractor withMergeJoin(boolean mergeJoin)
+    {
+        this.mergeJoin = mergeJoin;
+        return this;
+    }
+
+    /**
+     * Sets where the problems found in the raw data are reported.
+     *
+     * @param diagnostics the diagnostics
+     *
+     * @return This extractor.
+     */
+    public DataExtractor withDiagnostics(Diagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+        return this;
     }
 
     private Set<String> initHtmlFormats()
@@ -41,6 +88,31 @@ public class DataExtractor extends TableWorker
         return Set.of("1", "3");
     }
 
+    /**
+     * Declares the raw tables (and columns) this extractor reads,
+     * so that the loader can skip all the others.
+     * 
+     * @param prefix the raw table name prefix
+     *
+     * @return The selection of required tables.
+     */
+    public static TableSelection getRequiredTables(String prefix)
+    {
+        // Keep this in step with the calls to getTable() and row.get().
+        return new TableSelection()
+                .include(prefix + "taxonomy_term_data", "tid", "name", "description")
+                .include(prefix + "node_type", "type")
+                .include(prefix + "content_node_field_instance", "type_name", "field_name", "widget_module")
+                .include(prefix + "node", "nid", "vid", "type", "uid", "created", "changed", "title", "comment")
+                .include(prefix + "field_data_body", "entity_id", "body_value", "body_summary", "body_format")
+                .include(prefix + "node_counter", "nid", "totalcount", "timestamp")
+                .include(prefix + "url_alias", "pid", "source", "alias")
+                .include(prefix + "taxonomy_index", "nid", "tid")
+                .include(prefix + "files", "fid", "uid", "filepath", "filemime", "filesize", "filename")
+                .include(prefix + "image", "nid", "fid", "image_size")
+                .includePrefix(prefix + FIELD_TABLE_PREFIX, "entity_id", "delta", "field_*");
+    }
+
     /**
      * Load the raw tag data.
      * 
@@ -50,8 +122,8 @@ public class DataExtractor extends TableWorker
     {
         RawTable rawTags = getTable("taxonomy_term_data");
 
-        Map<String, Tag> tags = rawTags.getData()
-                .stream()
+        Map<String, Tag> tags = RawQuery.scan(rawTags)
+                .rows()
                 .map(row -> new Tag(
                         row.get("tid"),
                         row.get("name"),
@@ -59,8 +131,10 @@ public class DataExtractor extends TableWorker
                     )
                 )
                 .collect(
-                    toMap(Tag::getId, identity())
+                    toIntKeyedMap(Tag::getId)
                 );
+
+        release(rawTags);
         
         return tags;
     }
@@ -74,8 +148,8 @@ public class DataExtractor extends TableWorker
     {
         RawTable rawCTs = getTable("node_type");
 
-        Map<String, ContentType> types = rawCTs.getData()
-                .stream()
+        Map<String, ContentType> types = RawQuery.scan(rawCTs)
+                .rows()
                 .map(row -> new ContentType(
                         row.get("type")
                     )
@@ -83,6 +157,8 @@ public class DataExtractor extends TableWorker
                 .collect(
                     toMap(ContentType::getName, identity())
                 );
+
+        release(rawCTs);
         
         addFields(types);
 
@@ -93,22 +169,19 @@ public class DataExtractor extends TableWorker
     {
         RawTable rawFields = getTable("content_node_field_instance");
         
-        rawFields.getData()
-            .forEach(row -> {
-                String type = row.get("type_name");
-                if (types.containsKey(type))
-                {
+        RawQuery.scan(rawFields)
+            .join("type_name", types,
+                (type, row) -> {
                     Field field = new Field(
                         fieldName(row.get("field_name")),
                         row.get("widget_module")
                     );
-                    types.get(type).addField(field);
-                }
-                else
-                {
-                    System.err.format("Unknown content type found: %s%n", type);
-                }
-        });
+                    type.addField(field);
+                },
+                row -> diagnostics.report("Field for unknown content type", "%s", row.get("type_name"))
+            );
+
+        release(rawFields);
     }
     
     private String fieldName(String fieldName) {
@@ -123,29 +196,118 @@ public class DataExtractor extends TableWorker
      * @return A map of node IDs to nodes.
      */
     public Map<String, Node> getNodes(Map<String, Tag> tags)
+    {
+        Map<String, Node> nodes = readNodes();
+
+        addContent(nodes);
+        addCounts(nodes);
+        addAliases(nodes);
+        addTags(nodes, tags);
+        
+        return nodes;
+    }
+
+    /**
+     * Extracts everything from the raw data, one piece at a time.
+     *
+     * @return The extracted data.
+     */
+    public ExtractionResult extract()
+    {
+        Map<String, Tag> tags = getTags();
+        Map<String, Node> nodes = readNodes();
+        addContent(nodes);
+        addCounts(nodes);
+        Map<String, Alias> aliases = scanAliases(nodes); // Also adds the nodes' aliases
+        addTags(nodes, tags);
+        Map<String, ContentType> types = getContentTypes();
+        Map<String, List<FieldValue>> values = getFieldValues(types, nodes);
+        Map<String, File> files = getFiles(getFileReferences(values));
+        Map<String, String> imageMap = getImageMap(files, nodes);
+
+        return new ExtractionResult(tags, nodes, types, aliases, values, files, imageMap);
+    }
+
+    /**
+     * Extracts everything from the raw data, running the pieces that do not
+     * depend on each other at the same time. Nodes need tags, field values
+     * need content types and nodes, files need the field values (for the
+     * files they refer to) and the image map needs files and nodes.
+     * The node details (content, counts, aliases and tags) are also added
+     * at the same time, as each sets different parts of the nodes. The aliases
+     * are collected in the same pass over url_alias that adds them to the nodes.
+     *
+     * @param executor runs the pieces
+     *
+     * @return The extracted data.
+     */
+    public ExtractionResult extractInParallel(Executor executor)
+    {
+        CompletableFuture<Map<String, Tag>> tags = supplyAsync(this::getTags, executor);
+        CompletableFuture<Map<String, ContentType>> types = supplyAsync(this::getContentTypes, executor);
+
+        CompletableFuture<Map<String, Node>> baseNodes = supplyAsync(this::readNodes, executor);
+        CompletableFuture<Map<String, Alias>> aliases = baseNodes.thenApplyAsync(this::scanAliases, executor);
+        CompletableFuture<Map<String, Node>> nodes = CompletableFuture.allOf(
+                    baseNodes.thenAcceptAsync(this::addContent, executor),
+                    baseNodes.thenAcceptAsync(this::addCounts, executor),
+                    aliases,
+                    baseNodes.thenAcceptBothAsync(tags, this::addTags, executor)
+                )
+                .thenCompose(done -> baseNodes);
+
+        CompletableFuture<Map<String, List<FieldValue>>> values = types.thenCombine(nodes, (allTypes, allNodes) -> getFieldValues(allTypes, allNodes, executor))
+                .thenCompose(identity());
+        CompletableFuture<Map<String, File>> files = values.thenApplyAsync(allValues -> getFiles(getFileReferences(allValues)), executor);
+        CompletableFuture<Map<String, String>> imageMap = files.thenCombineAsync(nodes, this::getImageMap, executor);
+
+        return new ExtractionResult(join(tags), join(nodes), join(types), join(aliases), join(values), join(files), join(imageMap));
+    }
+
+    /*
+     * Waits for the given result, rethrowing any failure as it was thrown.
+     */
+    private static <T> T join(CompletableFuture<T> future)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Map<String, Node> readNodes()
     {
         RawTable rawNodes = getTable("node");
 
-        Map<String, Node> nodes = rawNodes.getData()
-                .stream()
-                .map(row -> new Node(
+        Map<String, Node> nodes = RawQuery.scan(rawNodes)
+                .rows()
+                .map(row -> {
+                    Node node = new Node(
                         row.get("nid"),
                         row.get("type"),
                         row.get("uid"),
                         row.get("created"),
                         row.get("changed"),
                         row.get("title")
-                    )
-                )
+                    );
+                    node.setVid(row.get("vid"));
+                    node.setCommentStatus(row.get("comment"));
+                    return node;
+                })
                 .collect(
-                    toMap(Node::getId, identity())
+                    toIntKeyedMap(Node::getId)
                 );
-        
-        addContent(nodes);
-        addCounts(nodes);
-        addAliases(nodes);
-        addTags(nodes, tags);
-        
+
+        release(rawNodes);
+
         return nodes;
     }
 
@@ -158,52 +320,64 @@ public class DataExtractor extends TableWorker
     {
         RawTable rawContent = getTable("field_data_body");
         
-        rawContent.getData()
-            .forEach(row -> {
-                String nid = row.get("entity_id");
-                if (nodes.containsKey(nid))
+        joinNodes(rawContent, "entity_id", nodes,
+            (node, row) -> {
+                String nid = node.getId();
+                String body = row.get("body_value");
+                node.setSummary(summaryOf(body, row.get("body_summary")));
+                node.setBody(bodyOf(body));
+                String format = formatOf(row.get("body_format"));
+                if (!htmlFormats.contains(format))
                 {
-                    Node node = nodes.get(nid);
-                    // If body is contains old-school summary marker, handle it.
-                    String body = row.get("body_value");
-                    String summary;
-                    if (body.contains(BREAK))
-                    {
-                        int index = body.indexOf(BREAK);
-                        summary = body.substring(0, index);
-                        if (summary.endsWith("\r\n"))
-                        {
-                            summary = summary.substring(0, summary.length() - 2);
-                        }
-                        body = body.substring(index + BREAK.length());
-                        if (body.startsWith("\r\n"))
-                        {
-                            body = body.substring(2);
-                        }
-                        body = summary + "\r\n\r\n" + body;
-                    }
-                    else
-                    {
-                        summary = row.get("body_summary");
-                    }
-                    node.setSummary(summary);
-                    node.setBody(body);
-                    String format = row.get("body_format");
-                    if (format == null)
-                    {
-                        format = "1";
-                    }
-                    if (!htmlFormats.contains(format))
-                    {
-                        System.err.format("Unknown body content type \"%s\" found for node: %s%n", format, nid);
-                    }
-                    node.setBodyFormat(format);
-                }
-                else
-                {
-                    System.err.format("Content found for unknown node: %s%n", nid);
+                    diagnostics.report("Unknown body format", "\"%s\" for node %s", format, nid);
                 }
-            });
+                node.setBodyFormat(format);
+            },
+            row -> diagnostics.report("Content for unknown node", "%s", row.get("entity_id"))
+        );
+
+        release(rawContent);
+    }
+
+    /*
+     * If the body contains the old-school summary marker, the summary is
+     * the text before it, and the body is the summary and the rest of the
+     * text in separate paragraphs. Otherwise, the body and summary are used
+     * as they are.
+     */
+    /*package*/ static String summaryOf(String body, String summary)
+    {
+        int index = body.indexOf(BREAK);
+        if (index < 0)
+        {
+            return summary;
+        }
+        summary = body.substring(0, index);
+        if (summary.endsWith("\r\n"))
+        {
+            summary = summary.substring(0, summary.length() - 2);
+        }
+        return summary;
+    }
+
+    /*package*/ static String bodyOf(String body)
+    {
+        int index = body.indexOf(BREAK);
+        if (index < 0)
+        {
+            return body;
+        }
+        String rest = body.substring(index + BREAK.length());
+        if (rest.startsWith("\r\n"))
+        {
+            rest = rest.substring(2);
+        }
+        return summaryOf(body, null) + "\r\n\r\n" + rest;
+    }
+
+    /*package*/ static String formatOf(String format)
+    {
+        return (format == null) ? "1" : format;
     }
 
     /**
@@ -215,20 +389,15 @@ public class DataExtractor extends TableWorker
     {
         RawTable rawCounts = getTable("node_counter");
 
-        rawCounts.getData()
-            .forEach(row -> {
-                String nid = row.get("nid");
-                if (nodes.containsKey(nid))
-                {
-                    Node node = nodes.get(nid);
-                    node.setReads(row.get("totalcount"));
-                    node.setLastRead(row.get("timestamp"));
-                }
-                else
-                {
-                    System.err.format("Count found for unknown node: %s%n", nid);
-                }
-            });
+        joinNodes(rawCounts, "nid", nodes,
+            (node, row) -> {
+                node.setReads(row.get("totalcount"));
+                node.setLastRead(row.get("timestamp"));
+            },
+            row -> diagnostics.report("Count for unknown node", "%s", row.get("nid"))
+        );
+
+        release(rawCounts);
     }
 
     /**
@@ -238,25 +407,45 @@ public class DataExtractor extends TableWorker
      */
     private void addAliases(Map<String, Node> nodes)
     {
-        RawTable rawAliases = getTable("url_alias");
-        
-        rawAliases.getData()
-            .forEach(row -> {
-                String source = row.get("source");
-                if (source.startsWith("node/"))
+        ScanGroup group = new ScanGroup(getPrefix());
+        setNodeAliases(group, nodes);
+        scan(group);
+    }
+
+    /**
+     * Extracts the alias data, adding it to the given nodes at the same time.
+     * 
+     * @param nodes the existing nodes
+     *
+     * @return A map of alias IDs to aliases.
+     */
+    private Map<String, Alias> scanAliases(Map<String, Node> nodes)
+    {
+        ScanGroup group = new ScanGroup(getPrefix());
+        setNodeAliases(group, nodes);
+        Map<String, Alias> aliases = collectAliases(group);
+        scan(group);
+        return aliases;
+    }
+
+    private void setNodeAliases(ScanGroup group, Map<String, Node> nodes)
+    {
+        group.register("url_alias", row -> {
+            String source = row.get("source");
+            if (source.startsWith("node/"))
+            {
+                String nid = source.substring(5); // Skip over "node/"
+                if (nodes.containsKey(nid))
                 {
-                    String nid = source.substring(5); // Skip over "node/"
-                    if (nodes.containsKey(nid))
-                    {
-                        Node node = nodes.get(nid);
-                        node.setAlias(row.get("alias"));
-                    }
-                    else
-                    {
-                        System.err.format("Alias found for unknown node: %s%n", nid);
-                    }
+                    Node node = nodes.get(nid);
+                    node.setAlias(row.get("alias"));
                 }
-            });
+                else
+                {
+                    diagnostics.report("Alias for unknown node", "%s", nid);
+                }
+            }
+        });
     }
 
     /**
@@ -269,27 +458,22 @@ public class DataExtractor extends TableWorker
     {
         RawTable rawTagMappings = getTable("taxonomy_index");
 
-        rawTagMappings.getData()
-            .forEach(row -> {
-                String nid = row.get("nid");
-                if (nodes.containsKey(nid))
+        joinNodes(rawTagMappings, "nid", nodes,
+            (node, row) -> {
+                String tid = row.get("tid");
+                if (tags.containsKey(tid))
                 {
-                    String tid = row.get("tid");
-                    if (tags.containsKey(tid))
-                    {
-                        nodes.get(nid).addTag(tags.get(tid));
-                    }
-                    else
-                    {
-                        System.err.format("Tag mapping found for node %s with unknown tag %s%n", nid, tid);
-                        System.err.format("Node: %s%n", nodes.get(nid));
-                    }
+                    node.addTag(tags.get(tid));
                 }
                 else
                 {
-                    System.err.format("Tafg mapping found for unknown node: %s%n", nid);
+                    diagnostics.report("Tag mapping with unknown tag", "node %s, tag %s", node.getId(), tid);
                 }
-            });
+            },
+            row -> diagnostics.report("Tag mapping for unknown node", "%s", row.get("nid"))
+        );
+
+        release(rawTagMappings);
     }
 
     /**
@@ -303,66 +487,77 @@ public class DataExtractor extends TableWorker
      */
     public Map<String, List<FieldValue>> getFieldValues(Map<String, ContentType> types, Map<String, Node> nodes)
     {
-        Map<String, List<FieldValue>> values = new HashMap<>();
+        return join(getFieldValues(types, nodes, Runnable::run));
+    }
 
-        types.values().forEach(type -> {
+    /**
+     * Extracts the field values for the given content types, one field
+     * table at a time on the given executor. The results are merged
+     * (and each node's values updated) in the same order as they would
+     * be serially, once every field has been extracted.
+     * 
+     * @param types the existing content types
+     * @param nodes the existing nodes
+     * @param executor extracts each field
+     *
+     * @return The future map of field name to the corresponding values.
+     */
+    public CompletableFuture<Map<String, List<FieldValue>>> getFieldValues(Map<String, ContentType> types, Map<String, Node> nodes, Executor executor)
+    {
+        List<CompletableFuture<FieldExtraction>> extractions = new ArrayList<>();
 
+        types.values().forEach(type -> {
             type.getFields().forEach(field -> {
-                
-                RawTable rawValues = getTable("field_data_field_" + field.getName());
-                
-                List<FieldValue> fieldValues = new ArrayList<>();
-                
-                rawValues.getData().forEach(row -> {
-
-                    FieldValue value = getFieldValue(field, row);
-                    
-                    if (nodes.containsKey(value.getId()))
-                    {
-                        fieldValues.add(value);
-                        nodes.get(value.getId()).addValue(value);
-                    }
-                    else
-                    {
-                        System.err.format("Value found in %s for unknown node %s%n", rawValues.getTableName(), value.getId());
-                    }
-
-                });
-                
-                values.put(field.getName(), fieldValues);
+                FieldColumns columns = new FieldColumns(field);
+                extractions.add(supplyAsync(() -> extractField(columns, nodes), executor));
             });
         });
-        
-        return values;
+
+        return CompletableFuture.allOf(extractions.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    Map<String, List<FieldValue>> values = new HashMap<>();
+                    extractions.forEach(future -> {
+                        FieldExtraction extraction = future.join();
+                        for (int i = 0; i < extraction.values.size(); i++)
+                        {
+                            extraction.nodes.get(i).addValue(extraction.values.get(i));
+                        }
+                        values.put(extraction.columns.field.getName(), extraction.values);
+                    });
+                    return values;
+                });
     }
 
-    private FieldValue getFieldValue(Field field, Map<String, String> row)
+    /*
+     * Extracts a single field's values, without changing the nodes,
+     * so that several fields can be extracted at once.
+     */
+    private FieldExtraction extractField(FieldColumns columns, Map<String, Node> nodes)
     {
-        String id = row.get("entity_id");
-        String delta = row.get("delta");
-        String prefix = "field_" + field.getName() + '_';
-        String type = field.getType();
+        RawTable rawValues = getTable(FIELD_TABLE_PREFIX + columns.field.getName());
 
-        String key;
-        if (type.equals("link"))
-        {
-            key = "url";
-        }
-        else if (type.equals("nodereference"))
-        {
-            key = "nid";
-        }
-        else
-        {
-            key = "value";
-        }
+        FieldExtraction extraction = new FieldExtraction(columns);
+
+        joinNodes(rawValues, "entity_id", nodes,
+            (node, row) -> {
+                extraction.values.add(getFieldValue(columns, row));
+                extraction.nodes.add(node);
+            },
+            row -> diagnostics.report("Value for unknown node", "%s in %s", row.get("entity_id"), rawValues.getTableName())
+        );
 
-        FieldValue value = new FieldValue(id, delta, field, row.get(prefix + key));
+        release(rawValues);
+
+        return extraction;
+    }
+
+    private FieldValue getFieldValue(FieldColumns columns, Map<String, String> row)
+    {
+        FieldValue value = new FieldValue(row.get("entity_id"), row.get("delta"), columns.field, row.get(columns.valueKey));
 
-        if (type.equals("link"))
+        if (columns.titleKey != null)
         {
-            String title = row.get(prefix + "title");
-            value.addExtra("title", title);
+            value.addExtra("title", row.get(columns.titleKey));
         }
 
         return value;
@@ -370,30 +565,45 @@ public class DataExtractor extends TableWorker
 
     public Map<String, Alias> getAliases()
     {
-        RawTable rawAliases = getTable("url_alias");
+        ScanGroup group = new ScanGroup(getPrefix());
+        Map<String, Alias> aliases = collectAliases(group);
+        scan(group);
+        return aliases;
+    }
 
-        Map<String, Alias> tags = rawAliases.getData()
-                .stream()
-                .map(row -> new Alias(
-                        row.get("pid"),
-                        row.get("source"),
-                        row.get("alias")
-                    )
-                )
-                .collect(
-                    toMap(Alias::getId, identity())
+    private Map<String, Alias> collectAliases(ScanGroup group)
+    {
+        IntKeyedMap<Alias> aliases = new IntKeyedMap<>();
+
+        group.register("url_alias", row -> {
+            Alias alias = new Alias(
+                    row.get("pid"),
+                    row.get("source"),
+                    row.get("alias")
                 );
-        
-        return tags;
+            if (aliases.putIfAbsent(alias.getId(), alias) != null)
+            {
+                throw new IllegalStateException("Duplicate key " + alias.getId());
+            }
+        });
+
+        return aliases;
     }
 
-    public Map<String, File> getFiles()
+    /**
+     * Extracts the (original) image files, and any others that are referred to.
+     *
+     * @param references the IDs of the other files to extract
+     *
+     * @return A map of file IDs to files.
+     */
+    public Map<String, File> getFiles(Set<String> references)
     {
         RawTable rawFiles = getTable("files");
         
-        Map<String, File> files = rawFiles.getData()
-                .stream()
-                .filter(row -> "_original".equals(row.get("filename")))
+        Map<String, File> files = RawQuery.scan(rawFiles)
+                .where(row -> "_original".equals(row.get("filename")) || references.contains(row.get("fid")))
+                .rows()
                 .map(row -> new File(
                         row.get("fid"),
                         row.get("uid"),
@@ -403,49 +613,225 @@ public class DataExtractor extends TableWorker
                     )
                 )
                 .collect(
-                    toMap(File::getId, identity())
+                    toIntKeyedMap(File::getId)
                 );
+
+        release(rawFiles);
         
         return files;
     }
     
-    public Map<String, String> getImageMap(Map<String, File> files, Map<String, Node> nodes)
+    /**
+     * Finds the (old) IDs of the files the given field values refer to.
+     *
+     * @param values the field values
+     *
+     * @return The file IDs.
+     */
+    public static Set<String> getFileReferences(Map<String, List<FieldValue>> values)
+    {
+        return values.values()
+                .stream()
+                .flatMap(List::stream)
+                .filter(value -> value.getField().getHandler().refersToFiles())
+                .map(FieldValue::getValue)
+                .collect(toSet());
+    }
+
+        public Map<String, String> getImageMap(Map<String, File> files, Map<String, Node> nodes)
     {
         RawTable rawImages = getTable("image");
         
         Map<String, String> imageMap = new HashMap<>();
         
-        rawImages.getData()
-                .forEach(row -> {
-                    String size = row.get("image_size");
-                    if ("_original".equals(size)) // Skip thumbnails and previews
-                    {
-                        String nid = row.get("nid");
+        RawQuery.scan(rawImages)
+                .where("image_size", "_original"::equals) // Skip thumbnails and previews
+                .join("nid", nodes,
+                    (node, row) -> {
                         String fid = row.get("fid");
-                        
-                        if (!nodes.containsKey(nid))
+                        if (files.containsKey(fid))
                         {
-                            System.err.format("Image with unknown node %s found%n", nid);
-                        }
-                        else if (!files.containsKey(fid))
-                        {
-                            System.err.format("Image with unknown file %s found%n", fid);
+                            imageMap.put(row.get("nid"), fid);
                         }
                         else
                         {
-                            imageMap.put(nid, fid);
+                            diagnostics.report("Image with unknown file", "%s", fid);
                         }
-                    }
-                });
+                    },
+                    row -> diagnostics.report("Image with unknown node", "%s", row.get("nid"))
+                );
+
+        release(rawImages);
         
         return imageMap;
         
     }
 
+    /*
+     * Passes each row to its node, or reports it if it has no node.
+     */
+    private void joinNodes(RawTable table, String idColumn, Map<String, Node> nodes,
+                           BiConsumer<Node, Map<String, String>> matched, Consumer<Map<String, String>> unmatched)
+    {
+        SortedNodes sorted = mergeJoin ? sortNodes(nodes) : null;
+
+        if (sorted != null)
+        {
+            mergeNodes(table, idColumn, nodes, sorted, matched, unmatched);
+        }
+        else
+        {
+            RawQuery.scan(table).join(idColumn, nodes, matched, unmatched);
+        }
+    }
+
+    /*
+     * Steps through the rows and the (sorted) nodes together.
+     * A node may have any number of rows, including none.
+     * If a row is out of order (or not numeric), the rest
+     * of the rows are looked up instead.
+     */
+    private void mergeNodes(RawTable table, String idColumn, Map<String, Node> nodes, SortedNodes sorted,
+                            BiConsumer<Node, Map<String, String>> matched, Consumer<Map<String, String>> unmatched)
+    {
+        List<Map<String, String>> rows = table.getData();
+        int next = 0;
+        long previous = 0;
+        for (int i = 0; i < rows.size(); i++)
+        {
+            Map<String, String> row = rows.get(i);
+            String nid = row.get(idColumn);
+            long id = parseId(nid);
+            if (id < previous)
+            {
+                diagnostics.report("Node data not ordered", "%s by %s from row %d, so looked up", table.getTableName(), idColumn, i);
+                lookUpNodes(rows.subList(i, rows.size()), idColumn, nodes, matched, unmatched);
+                return;
+            }
+            previous = id;
+
+            while ((next < sorted.ids.length) && (sorted.ids[next] < id))
+            {
+                next++;
+            }
+            Node node = (next < sorted.ids.length) ? sorted.nodes[next] : null;
+            if ((node != null) && node.getId().equals(nid)) // Not just numerically equal
+            {
+                matched.accept(node, row);
+            }
+            else
+            {
+                unmatched.accept(row);
+            }
+        }
+    }
+
+    private void lookUpNodes(List<Map<String, String>> rows, String idColumn, Map<String, Node> nodes,
+                             BiConsumer<Node, Map<String, String>> matched, Consumer<Map<String, String>> unmatched)
+    {
+        for (Map<String, String> row : rows)
+        {
+            Node node = nodes.get(row.get(idColumn));
+            if (node != null)
+            {
+                matched.accept(node, row);
+            }
+            else
+            {
+                unmatched.accept(row);
+            }
+        }
+    }
+
+    /*
+     * Sorts the nodes by ID, once for each set of nodes.
+     * Returns null if any ID is not numeric.
+     */
+    private synchronized SortedNodes sortNodes(Map<String, Node> nodes)
+    {
+        if ((sortedFrom != nodes) || (sortedNodes == null) || (sortedNodes.ids.length != nodes.size()))
+        {
+            sortedFrom = nodes;
+            sortedNodes = null;
+            List<Node> sorted = null;
+            if (nodes instanceof IntKeyedMap)
+            {
+                IntKeyedMap<Node> intNodes = (IntKeyedMap<Node>)nodes;
+                sorted = Arrays.stream(intNodes.sortedKeys())
+                        .mapToObj(intNodes::get)
+                        .collect(toList());
+            }
+            else if (nodes.keySet().stream().allMatch(nid -> parseId(nid) >= 0))
+            {
+                sorted = nodes.values()
+                        .stream()
+                        .sorted(Comparator.comparingLong(node -> parseId(node.getId())))
+                        .collect(toList());
+            }
+            if (sorted != null)
+            {
+                sortedNodes = new SortedNodes(sorted);
+            }
+        }
+        return sortedNodes;
+    }
+
+    /*
+     * Parses a (non-negative) ID, returning -1 if it is not one.
+     */
+    private static long parseId(String value)
+    {
+        if ((value == null) || value.isEmpty() || (value.length() > 18))
+        {
+            return -1;
+        }
+        long id = 0;
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if ((c < '0') || (c > '9'))
+            {
+                return -1;
+            }
+            id = (id * 10) + (c - '0');
+        }
+        return id;
+    }
+
+    /**
+     * The nodes in ID order, alongside their (parsed) IDs.
+     */
+    private static class SortedNodes
+    {
+        private final Node[] nodes;
+        private final long[] ids;
+
+        SortedNodes(List<Node> sorted)
+        {
+            this.nodes = sorted.toArray(new Node[0]);
+            this.ids = sorted.stream().mapToLong(node -> parseId(node.getId())).toArray();
+        }
+    }
+
+    /*
+     * Scans each of the group's tables once, feeding all its consumers.
+     */
+    private void scan(ScanGroup group)
+    {
+        group.getTableNames().forEach(tableName -> {
+            RawTable table = getRawTable(tableName);
+            group.scan(tableName, table.getData());
+            release(table);
+        });
+    }
+
     private RawTable getTable(String tableName)
     {
-        tableName = getTableName(tableName);
+        return getRawTable(getTableName(tableName));
+    }
 
+    private RawTable getRawTable(String tableName)
+    {
         RawTable table = rawData.get(tableName);
 
         if (table == null)
@@ -455,4 +841,54 @@ public class DataExtractor extends TableWorker
         
         return table;
     }
+
+    /*
+     * Lazily loaded tables are parsed again if they are needed again,
+     * so they can be dropped as soon as each use is over.
+     */
+    private void release(RawTable table)
+    {
+        if (rawData instanceof LazyRawData)
+        {
+            ((LazyRawData)rawData).release(table.getTableName());
+        }
+    }
+
+    /**
+     * The columns holding a field's data, worked out once per field
+     * rather than for every row.
+     */
+    private static class FieldColumns
+    {
+        private final Field field;
+        private final String valueKey;
+        private final String titleKey;
+
+        FieldColumns(Field field)
+        {
+            String prefix = "field_" + field.getName() + '_';
+            FieldTypeHandler handler = field.getHandler();
+
+            this.field = field;
+            this.valueKey = prefix + handler.getValueColumn();
+            this.titleKey = (handler.getTitleColumn() != null) ? prefix + handler.getTitleColumn() : null;
+        }
+    }
+
+    /**
+     * The values extracted for a single field, along with their nodes.
+     */
+    private static class FieldExtraction
+    {
+        private final FieldColumns columns;
+        private final List<FieldValue> values;
+        private final List<Node> nodes;
+
+        FieldExtraction(FieldColumns columns)
+        {
+            this.columns = columns;
+            this.values = new ArrayList<>();
+            this.nodes = new ArrayList<>();
+        }
+    }
 }
@@ -8,13 +8,22 @@
 package au.com.shawware.drupal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
 
+import au.com.shawware.drupal.MigrationManifest.Kind;
+
+import static au.com.shawware.drupal.TableKey.multiple;
+import static au.com.shawware.drupal.TableKey.single;
 import static java.lang.Integer.valueOf;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toMap;
@@ -32,6 +41,9 @@ public class DataGenerator extends TableWorker
     private final String database;
     private final Map<String, Table<? extends Entity>> data;
     private final Map<String, String> htmlFormats;
+    private Diagnostics diagnostics;
+    private boolean revisions;
+    private ForkJoinPool pool;
 
     public DataGenerator(String database, String prefix)
     {
@@ -40,6 +52,51 @@ public class DataGenerator extends TableWorker
         this.database = database;
         this.data = new LinkedHashMap<>(); // The order of addition is important here.
         this.htmlFormats = initHtmlFormats();
+        this.diagnostics = new Diagnostics();
+        this.revisions = false;
+        this.pool = null;
+    }
+
+    /**
+     * Sets where problems with the model are reported.
+     *
+     * @param diagnostics the diagnostics
+     *
+     * @return This generator.
+     */
+    public DataGenerator withDiagnostics(Diagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+        return this;
+    }
+
+    /**
+     * Sets whether the full revision history is migrated separately (see
+     * {@link RevisionMigrator}). If so, the nodes point at their current
+     * revisions and no revision tables are generated here.
+     *
+     * @param revisions whether the revision history is migrated
+     *
+     * @return This generator.
+     */
+    public DataGenerator withRevisions(boolean revisions)
+    {
+        this.revisions = revisions;
+        return this;
+    }
+
+    /**
+     * Sets the pool on which each content type's field tables are generated,
+     * at the same time as the others'. Without one, they are generated in turn.
+     *
+     * @param pool the pool (or null)
+     *
+     * @return This generator.
+     */
+    public DataGenerator withPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        return this;
     }
 
     private Map<String, String> initHtmlFormats()
@@ -88,20 +145,27 @@ public class DataGenerator extends TableWorker
         addTagParent(tags);
 
         addNode(nodes);
-        addNodeRevision(nodes);
+        if (!revisions)
+        {
+            addNodeRevision(nodes);
+        }
         addNodeData(nodes);
-        addNodeDataRevision(nodes);
+        if (!revisions)
+        {
+            addNodeDataRevision(nodes);
+        }
         addNodeBody(nodes);
         addNodeTags(nodes);
         addNodeFieldTags(nodes);
         addCounts(nodes);
+        addNodeComments(nodes);
 
         addAliases(aliases);
         
         addFiles(files);
         addNodeFiles(imageMap, nodes, files);
 
-        addValues(types, values);
+        addValues(types, nodes, values);
     }
 
     private void preparePictures(
@@ -124,7 +188,7 @@ public class DataGenerator extends TableWorker
             FieldValue value = new FieldValue(nid, "0", pictureField, file.getId());
             if (!nodes.containsKey(nid))
             {
-                System.err.format("Unknown nid %s%n", nid);
+                diagnostics.report("Image for unknown node", "%s", nid);
             }
             value.addExtra("title", nodes.get(nid).getTitle());
             pictures.add(value);
@@ -143,7 +207,7 @@ public class DataGenerator extends TableWorker
                 .addText("langcode", (t) -> LANG_CODE)
                 .build();
 
-        createAndStoreTable("taxonomy_term_data", tags, columns);
+        createAndStoreTable("taxonomy_term_data", single(Kind.TAG, "tid"), tags, columns);
     }
 
     private void addTagRevision(Map<String, Tag> tags)
@@ -158,7 +222,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("revision_default", (n) -> "1")
                 .build();
 
-        createAndStoreTable("taxonomy_term_revision", tags, columns);
+        createAndStoreTable("taxonomy_term_revision", single(Kind.TAG, "tid"), tags, columns);
     }
 
     private void addTagData(Map<String, Tag> tags)
@@ -178,7 +242,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("revision_translation_affected", (n) -> "1")
                 .build();
 
-        createAndStoreTable("taxonomy_term_field_data", tags, columns);
+        createAndStoreTable("taxonomy_term_field_data", single(Kind.TAG, "tid"), tags, columns);
     }
 
     private void addTagDataRevision(Map<String, Tag> tags)
@@ -195,7 +259,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("default_langcode", (n) -> "1")
                 .build();
 
-        createAndStoreTable("taxonomy_term_field_revision", tags, columns);
+        createAndStoreTable("taxonomy_term_field_revision", single(Kind.TAG, "tid"), tags, columns);
     }
 
     private void addTagParent(Map<String, Tag> tags)
@@ -210,28 +274,28 @@ public class DataGenerator extends TableWorker
                 .addNumeric("parent_target_id", (t) -> "0")
                 .build();
 
-        createAndStoreTable("taxonomy_term__parent", tags, columns);
-        createAndStoreTable("taxonomy_term_revision__parent", tags, columns);
+        createAndStoreTable("taxonomy_term__parent", single(Kind.TAG, "entity_id"), tags, columns);
+        createAndStoreTable("taxonomy_term_revision__parent", single(Kind.TAG, "entity_id"), tags, columns);
     }
 
     private void addNode(Map<String, Node> nodes)
     {
         List<Column<Node>> columns = new Columns<Node>()
                 .addNumeric("nid", Node::getId)
-                .addNumeric("vid", Node::getId)
+                .addNumeric("vid", this::vid)
                 .addText("type", (node) -> mapNodeType(node.getType()))
                 .addText("uuid", (n) -> generateUUID())
                 .addText("langcode", (n) -> LANG_CODE)
                 .build();
 
-        createAndStoreTable("node", nodes, columns);
+        createAndStoreTable("node", single(Kind.NODE, "nid"), nodes, columns);
     }
 
     private void addNodeRevision(Map<String, Node> nodes)
     {
         List<Column<Node>> columns = new Columns<Node>()
                 .addNumeric("nid", Node::getId)
-                .addNumeric("vid", Node::getId)
+                .addNumeric("vid", this::vid)
                 .addText("langcode", (n) -> LANG_CODE)
                 .addNumeric("revision_uid", Node::getUid)
                 .addNumeric("revision_timestamp", Node::getCreated)
@@ -239,14 +303,14 @@ public class DataGenerator extends TableWorker
                 .addNumeric("revision_default", (n) -> "1")
                 .build();
 
-        createAndStoreTable("node_revision", nodes, columns);
+        createAndStoreTable("node_revision", single(Kind.NODE, "nid"), nodes, columns);
     }
 
     private void addNodeData(Map<String, Node> nodes)
     {
         List<Column<Node>> columns = new Columns<Node>()
                 .addNumeric("nid", Node::getId)
-                .addNumeric("vid", Node::getId)
+                .addNumeric("vid", this::vid)
                 .addText("type", (node) -> mapNodeType(node.getType()))
                 .addText("langcode", (n) -> LANG_CODE)
                 .addNumeric("status", (n) -> "1")
@@ -260,14 +324,14 @@ public class DataGenerator extends TableWorker
                 .addNumeric("revision_translation_affected", (n) -> "1")
                 .build();
 
-        createAndStoreTable("node_field_data", nodes, columns);
+        createAndStoreTable("node_field_data", single(Kind.NODE, "nid"), nodes, columns);
     }
 
     private void addNodeDataRevision(Map<String, Node> nodes)
     {
         List<Column<Node>> columns = new Columns<Node>()
                 .addNumeric("nid", Node::getId)
-                .addNumeric("vid", Node::getId)
+                .addNumeric("vid", this::vid)
                 .addText("langcode", (n) -> LANG_CODE)
                 .addNumeric("status", (n) -> "1")
                 .addNumeric("uid", Node::getUid)
@@ -280,7 +344,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("revision_translation_affected", (n) -> "1")
                 .build();
 
-        createAndStoreTable("node_field_revision", nodes, columns);
+        createAndStoreTable("node_field_revision", single(Kind.NODE, "nid"), nodes, columns);
     }
 
     private void addNodeBody(Map<String, Node> nodes)
@@ -289,7 +353,7 @@ public class DataGenerator extends TableWorker
                 .addText("bundle", (node) -> mapNodeType(node.getType()))
                 .addNumeric("deleted", (n) -> "0")
                 .addNumeric("entity_id", Node::getId)
-                .addNumeric("revision_id", Node::getId)
+                .addNumeric("revision_id", this::vid)
                 .addText("langcode", (n) -> LANG_CODE)
                 .addNumeric("delta", (n) -> "0")
                 .addHTML("body_value", Node::getBody)
@@ -297,8 +361,11 @@ public class DataGenerator extends TableWorker
                 .addText("body_format", (node) -> htmlFormats.get(node.getBodyFormat()))
                 .build();
 
-        createAndStoreTable("node__body", nodes, columns);
-        createAndStoreTable("node_revision__body", nodes, columns);
+        createAndStoreTable("node__body", single(Kind.NODE, "entity_id"), nodes, columns);
+        if (!revisions)
+        {
+            createAndStoreTable("node_revision__body", single(Kind.NODE, "entity_id"), nodes, columns);
+        }
     }
 
     private void addNodeTags(Map<String, Node> nodes)
@@ -311,7 +378,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("created")
                 .build();
 
-        createAndStoreTagAssociationTable("taxonomy_index", nodes, columns, this::populateNodeTagsRow);
+        createAndStoreTagAssociationTable("taxonomy_index", multiple(Kind.NODE, "nid"), nodes, columns, this::populateNodeTagsRow);
     }
 
     private void populateNodeTagsRow(Map<String, String> row, Node node, Tag tag, Integer tagIndex)
@@ -334,7 +401,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("field_tags_target_id")
                 .build();
 
-        createAndStoreTagAssociationTable("node__field_tags", nodes, columns, this::populateNodeFieldTagsRow);
+        createAndStoreTagAssociationTable("node__field_tags", multiple(Kind.NODE, "entity_id"), nodes, columns, this::populateNodeFieldTagsRow);
     }
 
     private void populateNodeFieldTagsRow(Map<String, String> row, Node node, Tag tag, Integer tagIndex)
@@ -342,7 +409,7 @@ public class DataGenerator extends TableWorker
         row.put("bundle", node.getType());
         row.put("deleted", "0");
         row.put("entity_id", node.getId());
-        row.put("revision_id", node.getId());
+        row.put("revision_id", vid(node));
         row.put("langcode", LANG_CODE);
         row.put("delta", String.valueOf(tagIndex));
         row.put("field_tags_target_id", tag.getId());
@@ -357,7 +424,32 @@ public class DataGenerator extends TableWorker
                 .addNumeric("timestamp", (n) -> "0")
                 .build();
 
-        createAndStoreTable("node_counter", nodes, columns);
+        createAndStoreTable("node_counter", single(Kind.NODE, "nid"), nodes, columns);
+    }
+
+    // Only nodes whose comment setting is known get a comment field.
+    private void addNodeComments(Map<String, Node> nodes)
+    {
+        List<Column<Node>> columns = new Columns<Node>()
+                .addText("bundle", (node) -> mapNodeType(node.getType()))
+                .addNumeric("deleted", (n) -> "0")
+                .addNumeric("entity_id", Node::getId)
+                .addNumeric("revision_id", this::vid)
+                .addText("langcode", (n) -> LANG_CODE)
+                .addNumeric("delta", (n) -> "0")
+                .addNumeric("comment_status", (node) -> node.getCommentStatus().get())
+                .build();
+
+        IntKeyedMap<Node> commentable = nodes.values()
+                .stream()
+                .filter(node -> node.getCommentStatus().isPresent())
+                .collect(IntKeyedMap.toIntKeyedMap(Node::getId));
+
+        createAndStoreTable("node__comment", single(Kind.NODE, "entity_id"), commentable, columns);
+        if (!revisions)
+        {
+            createAndStoreTable("node_revision__comment", single(Kind.NODE, "entity_id"), commentable, columns);
+        }
     }
 
     // D9 aliases have a leading /, which D7 aliases do not.
@@ -383,8 +475,8 @@ public class DataGenerator extends TableWorker
                 .addNumeric("revision_default", (a) -> "1")
                 .build();
 
-        createAndStoreTable("path_alias", aliases, columns);
-        createAndStoreTable("path_alias_revision", aliases, revisionColumns);
+        createAndStoreTable("path_alias", single(Kind.ALIAS, "id"), aliases, columns);
+        createAndStoreTable("path_alias_revision", single(Kind.ALIAS, "id"), aliases, revisionColumns);
     }
 
     private String convertPath(String path)
@@ -413,7 +505,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("changed", (f) -> "0") // TODO: get from node?
                 .build();
 
-        createAndStoreTable("file_managed", files, columns);
+        createAndStoreTable("file_managed", single(Kind.FILE, "fid"), files, columns);
     }
 
     private String fileName(String path)
@@ -445,7 +537,7 @@ public class DataGenerator extends TableWorker
                 .addNumeric("count")
                 .build();
 
-        createAndStoreFileAssociationTable("file_usage", imageMap, nodes, files, columns, this::populateFileUsageRow);
+        createAndStoreFileAssociationTable("file_usage", multiple(Kind.NODE, "id"), imageMap, nodes, files, columns, this::populateFileUsageRow);
     }
     
     private void populateFileUsageRow(Map<String, String> row, Node node, File file)
@@ -457,81 +549,87 @@ public class DataGenerator extends TableWorker
         row.put("count", "1");
     }
 
-    private void addValues(Map<String, ContentType> types, Map<String, List<FieldValue>> values)
+    /*
+     * Each content type's fields (and so their tables) are its own, so the
+     * types are generated at the same time, then stored in the usual order.
+     */
+    private void addValues(Map<String, ContentType> types, Map<String, Node> nodes, Map<String, List<FieldValue>> values)
+    {
+        List<ForkJoinTask<List<Table<FieldValue>>>> partitions = new ArrayList<>();
+        types.values().forEach(type -> partitions.add(fork(() -> createValueTables(type, nodes, values))));
+        partitions.forEach(partition -> partition.join().forEach(table -> data.put(table.getTableName(), table)));
+    }
+
+    private List<Table<FieldValue>> createValueTables(ContentType type, Map<String, Node> nodes, Map<String, List<FieldValue>> values)
     {
-        types.values().forEach(type ->
+        List<Table<FieldValue>> tables = new ArrayList<>();
+
+        type.getFields().forEach(field ->
         {
-            type.getFields().forEach(field ->
+            List<Column<FieldValue>> columns = new Columns<FieldValue>()
+                    .addText("bundle", (v) -> type.getName())
+                    .addNumeric("deleted", (v) -> "0")
+                    .addNumeric("entity_id", FieldValue::getId)
+                    .addNumeric("revision_id", (value) -> vid(nodes.get(value.getId()), value.getId()))
+                    .addText("langcode", (v) -> LANG_CODE)
+                    .addNumeric("delta", FieldValue::getDelta)
+                    .build();
+
+            String fieldName = field.getName();
+            String outputFieldName = outputFieldName(fieldName);
+
+            if (!FieldTypeHandlers.isRegistered(field.getType()))
             {
-                List<Column<FieldValue>> columns = new Columns<FieldValue>()
-                        .addText("bundle", (v) -> type.getName())
-                        .addNumeric("deleted", (v) -> "0")
-                        .addNumeric("entity_id", FieldValue::getId)
-                        .addNumeric("revision_id", FieldValue::getId)
-                        .addText("langcode", (v) -> LANG_CODE)
-                        .addNumeric("delta", FieldValue::getDelta)
-                        .build();
-
-                String fieldName = field.getName();
-                String outputFieldName = fieldName.endsWith("_scor") ? fieldName + "e" : fieldName;
-
-                String fieldType = field.getType();
-
-                String prefix = "field_" + outputFieldName + "_";
-
-                if (fieldType.equals("link"))
-                {
-                    columns.add(new Column<>(prefix + "uri", Columns.HTML, FieldValue::getValue));
-                    columns.add(new Column<>(prefix + "title", Columns.HTML, value -> value.getExtra("title")));
-                    columns.add(new Column<>(prefix + "options", Columns.TEXT, (v) -> "a:0:{}"));
-                }
-                else if (fieldType.equals("image"))
-                {
-                    columns.add(new Column<>(prefix + "target_id", Columns.NUMBER, FieldValue::getValue));
-                    columns.add(new Column<>(prefix + "alt", Columns.HTML, value -> value.getExtra("title")));
-                    columns.add(new Column<>(prefix + "title", Columns.HTML, value -> value.getExtra("title")));
-                    columns.add(new Column<>(prefix + "width", Columns.NUMBER, (v) -> NULL));
-                    columns.add(new Column<>(prefix + "height", Columns.NUMBER, (v) -> NULL));
-                }
-                else
-                {
-                    String suffix = "value";
-                    String columnType;
-                    if (fieldType.equals("number"))
-                    {
-                        columnType = Columns.NUMBER;
-                    }
-                    else if (fieldType.equals("date"))
-                    {
-                        columnType = Columns.TEXT;
-                    }
-                    else if (fieldType.equals("text"))
-                    {
-                        columnType = Columns.HTML;
-                    }
-                    else if (fieldType.equals("nodereference"))
-                    {
-                        suffix = "target_id";
-                        columnType = Columns.NUMBER;
-                    }
-                    else
-                    {
-                        columnType = "error";
-                        System.err.format("Unknown field type: %s%n", fieldType);
-                    }
-                    columns.add(new Column<>(prefix + suffix, columnType, FieldValue::getValue));
-                }
-
-                List<FieldValue> fieldValues = values.get(fieldName);
-
-                Map<String, FieldValue> entities = fieldValues.stream()
-                        .collect(toMap(value -> createValueKey(value), identity()));
-
-                createAndStoreTable("node__field_" + outputFieldName, entities, columns);
+                diagnostics.report("Unknown field type", "%s", field.getType());
+            }
+            field.getHandler().addColumns("field_" + outputFieldName + "_", columns);
 
-            });
+            List<FieldValue> fieldValues = values.get(fieldName);
 
+            Map<String, FieldValue> entities = fieldValues.stream()
+                    .collect(toMap(value -> createValueKey(value), identity()));
+
+            tables.add(createTable("node__field_" + outputFieldName, multiple(Kind.NODE, "entity_id"), entities, columns));
         });
+
+        return tables;
+    }
+
+    /*
+     * Starts the given work on the pool, or just does it if there is no pool.
+     */
+    private <T> ForkJoinTask<T> fork(Callable<T> work)
+    {
+        ForkJoinTask<T> task = ForkJoinTask.adapt(work);
+        if (pool == null)
+        {
+            task.invoke();
+        }
+        else
+        {
+            pool.execute(task);
+        }
+        return task;
+    }
+
+    /*package*/ static String outputFieldName(String fieldName)
+    {
+        return fieldName.endsWith("_scor") ? fieldName + "e" : fieldName;
+    }
+
+    // Each node points at its current revision, which is itself unless the history is migrated.
+    private String vid(Node node)
+    {
+        return vid(node, node.getId());
+    }
+
+    private String vid(Node node, String nid)
+    {
+        if (!revisions || (node == null))
+        {
+            return nid;
+        }
+        return node.getVid().orElse(nid);
     }
 
     private String createValueKey(FieldValue value)
@@ -539,35 +637,40 @@ public class DataGenerator extends TableWorker
         return value.getId() + "::" + value.getDelta();
     }
 
-    private <T extends Entity> void createAndStoreTable(String tableName, Map<String, T> entities, List<Column<T>> columns)
+    private <T extends Entity> void createAndStoreTable(String tableName, TableKey key, Map<String, T> entities, List<Column<T>> columns)
     {
-        tableName = getTableName(tableName);
+        Table<T> table = createTable(tableName, key, entities, columns);
 
-        Table<T> table = new Table<>(database, tableName, columns);
+        data.put(table.getTableName(), table);
+    }
+
+    private <T extends Entity> Table<T> createTable(String tableName, TableKey key, Map<String, T> entities, List<Column<T>> columns)
+    {
+        Table<T> table = new Table<>(database, getTableName(tableName), columns).withKey(key);
 
         fillTable(table, entities);
 
-        data.put(tableName, table);
+        return table;
     }
 
-    private void createAndStoreTagAssociationTable(String tableName, Map<String, Node> nodes, List<Column<Entity>> columns,
+    private void createAndStoreTagAssociationTable(String tableName, TableKey key, Map<String, Node> nodes, List<Column<Entity>> columns,
             QuadFunction<Map<String, String>, Node, Tag, Integer> rowPopulator)
     {
         tableName = getTableName(tableName);
 
-        Table<Entity> table = new Table<>(database, tableName, columns);
+        Table<Entity> table = new Table<>(database, tableName, columns).withKey(key);
 
         fillTagAssociationTable(table, nodes, rowPopulator);
 
         data.put(tableName, table);
     }
 
-    private void createAndStoreFileAssociationTable(String tableName, Map<String, String> imageMap, Map<String, Node> nodes, Map<String, File> files, List<Column<Entity>> columns,
+    private void createAndStoreFileAssociationTable(String tableName, TableKey key, Map<String, String> imageMap, Map<String, Node> nodes, Map<String, File> files, List<Column<Entity>> columns,
             TernaryFunction<Map<String, String>, Node, File> rowPopulator)
     {
         tableName = getTableName(tableName);
 
-        Table<Entity> table = new Table<>(database, tableName, columns);
+        Table<Entity> table = new Table<>(database, tableName, columns).withKey(key);
 
         fillFileAssociationTable(table, imageMap, nodes, files, rowPopulator);
 
@@ -578,11 +681,21 @@ public class DataGenerator extends TableWorker
     {
         List<Column<T>> columns = table.getColumns();
 
-        entities.keySet()
-            .stream()
-            .sorted(this::comparator)
-            .forEach(id -> {
-                T entity = entities.get(id);
+        Stream<T> sorted;
+        if (entities instanceof IntKeyedMap)
+        {
+            IntKeyedMap<T> intEntities = (IntKeyedMap<T>)entities;
+            sorted = Arrays.stream(intEntities.sortedKeys()).mapToObj(intEntities::get);
+        }
+        else
+        {
+            sorted = entities.keySet()
+                .stream()
+                .sorted(this::comparator)
+                .map(entities::get);
+        }
+
+        sorted.forEach(entity -> {
                 Map<String, String> row = createRow();
                 columns.forEach(column -> {
                     row.put(column.getName(), column.getValue(entity));
@@ -615,11 +728,8 @@ public class DataGenerator extends TableWorker
 
     private void fillTagAssociationTable(Table<Entity> table, Map<String, Node> nodes, QuadFunction<Map<String, String>, Node, Tag, Integer> rowPopulator)
     {
-        nodes.keySet()
-             .stream()
-             .map(Integer::valueOf)
-             .sorted()
-             .map(Object::toString)
+        Arrays.stream(IntKeyedMap.sortedKeys(nodes))
+             .mapToObj(String::valueOf)
              .forEach(nid -> {
                  Node node = nodes.get(nid);
                  List<Tag> tags = node.getTags();
@@ -640,21 +750,20 @@ public class DataGenerator extends TableWorker
 
     private void fillFileAssociationTable(Table<Entity> table, Map<String, String> imageMap, Map<String, Node> nodes, Map<String, File> files, TernaryFunction<Map<String, String>, Node, File> rowPopulator)
     {
-        Map<String, String> reverseImageMap = imageMap.entrySet()
+        IntKeyedMap<String> reverseImageMap = imageMap.entrySet()
             .stream()
             .collect(toMap(
                         Entry::getValue,
-                        Entry::getKey
+                        Entry::getKey,
+                        (nid1, nid2) -> { throw new IllegalStateException("Duplicate key " + nid1); },
+                        IntKeyedMap::new
                     )
             );
         
-        reverseImageMap.keySet()
-            .stream()
-            .map(Integer::valueOf)
-            .sorted()
-            .map(Object::toString)
-            .forEach(fid -> {
-                String nid = reverseImageMap.get(fid);
+        Arrays.stream(reverseImageMap.sortedKeys())
+            .forEach(id -> {
+                String fid = String.valueOf(id);
+                String nid = reverseImageMap.get(id);
 
                 Map<String, String> row = createRow();
 
@@ -669,7 +778,7 @@ public class DataGenerator extends TableWorker
         return UUID.randomUUID().toString();
     }
 
-    private String mapNodeType(String type)
+    /*package*/ static String mapNodeType(String type)
     {
         String result = type;
         if ("story".equals(type))
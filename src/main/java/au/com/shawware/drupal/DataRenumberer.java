@@ -8,14 +8,17 @@
 package au.com.shawware.drupal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
-import static java.util.stream.Collectors.joining;
-import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 /**
@@ -25,6 +28,97 @@ import static java.util.stream.Collectors.toMap;
  */
 public class DataRenumberer
 {
+    private static final String LINK_MARKER = "<a href=\"";
+    private static final String IMAGE_MARKER = "<img src=\"";
+    private static final String INTERNAL_MARKER = "internal:";
+    private static final String NODE_MARKER = "/thing/";
+    private static final String INTERNAL_NODE_MARKER = "thing/"; // Once the "internal:" becomes "/"
+    private static final long TEXT_SPLIT_SIZE = 1 << 16; // Characters
+    private static final long ITEM_SPLIT_SIZE = 1 << 10; // Values or aliases
+
+    private Diagnostics diagnostics;
+    private MigrationManifest previous;
+    private IntKeyedMap<String> nidMap;
+    private IntKeyedMap<String> fidMap;
+    private IntKeyedMap<String> aliasMap;
+    private ForkJoinPool pool;
+
+    public DataRenumberer()
+    {
+        this.diagnostics = new Diagnostics();
+        this.previous = null;
+        this.pool = null;
+    }
+
+    /**
+     * Sets where references to unknown entities are reported.
+     *
+     * @param diagnostics the diagnostics
+     *
+     * @return This renumberer.
+     */
+    public DataRenumberer withDiagnostics(Diagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+        return this;
+    }
+
+    /**
+     * Sets the manifest of a previous run, whose new IDs are to be kept.
+     * Entities that are new since then are numbered after all the IDs the
+     * previous run handed out.
+     *
+     * @param previous the previous run's manifest
+     *
+     * @return This renumberer.
+     */
+    public DataRenumberer withPrevious(MigrationManifest previous)
+    {
+        this.previous = previous;
+        return this;
+    }
+
+    /**
+     * Sets the pool on which independent pieces of the renumbering are run
+     * at the same time. Without one, everything is renumbered in turn.
+     * Once the new IDs have been assigned, the node bodies, field values
+     * and aliases are each renumbered in pieces of about the same size, so
+     * that a few huge bodies do not hold up the rest. As each only reads the
+     * (by then unchanging) ID maps, the results are the same either way.
+     *
+     * @param pool the pool (or null)
+     *
+     * @return This renumberer.
+     */
+    public DataRenumberer withPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * @return The map of old node IDs to new ones (once renumbered).
+     */
+    public Map<String, String> getNidMap()
+    {
+        return nidMap;
+    }
+
+    /**
+     * @return The map of old file IDs to new ones (once renumbered).
+     */
+    public Map<String, String> getFidMap()
+    {
+        return fidMap;
+    }
+
+    /**
+     * @return The map of old alias IDs to new ones (once renumbered).
+     */
+    public Map<String, String> getAliasMap()
+    {
+        return aliasMap;
+    }
 
     public void renumberContent(
             int startingNode,
@@ -34,16 +128,14 @@ public class DataRenumberer
             Map<String, String> imageMap,
             Map<String, Alias> aliases
     ) {
-        List<String> nids = getSortedIds(nodes);
+        int[] nids = IntKeyedMap.sortedKeys(nodes);
 
-        Map<String, String> nidMap = new HashMap<>();
-        Map<String, Node> newNodes = new HashMap<>();
-        for (int nid = 0; nid < nids.size(); nid++)
+        nidMap = assignIds(nids, startingNode, MigrationManifest.Kind.NODE);
+        IntKeyedMap<Node> newNodes = new IntKeyedMap<>(nids.length);
+        for (int oldNid : nids)
         {
-            String oldNid = nids.get(nid);
-            String newNid = String.valueOf(startingNode + nid);
-            nidMap.put(oldNid, newNid);
-            Node oldNode = nodes.remove(oldNid);
+            String newNid = nidMap.get(oldNid);
+            Node oldNode = nodes.remove(String.valueOf(oldNid));
             String alias = convertAlias(nidMap, oldNode.getAlias());
             Node newNode = new Node(newNid, oldNode);
             newNode.setAlias(alias);
@@ -51,7 +143,9 @@ public class DataRenumberer
             newNodes.put(newNid, newNode);
         }
         
-        newNodes.values().forEach(node -> {
+        Node[] bodies = newNodes.values().toArray(new Node[0]);
+        forEachIndex(textSizes(bodies), TEXT_SPLIT_SIZE, i -> {
+            Node node = bodies[i];
             node.setSummary(node.getSummary().map((s) -> renumberPaths(nidMap, s)).orElse(null));
             node.setBody(renumberPaths(nidMap, node.getBody()));
         });
@@ -59,12 +153,30 @@ public class DataRenumberer
         nodes.clear();
         nodes.putAll(newNodes);
 
-        renumberValues(values, nidMap);
         renumberImageMap(imageMap, nidMap);
-        renumberFiles(files, imageMap);
+        renumberFiles(files, imageMap, DataExtractor.getFileReferences(values));
+        renumberValues(values, nidMap);
         renumberAliases(startingNode, aliases, nidMap);
     }
 
+    /*
+     * Gives each old ID a new one, in order, starting from the given ID.
+     * IDs from the previous run (if any) are kept.
+     */
+    private IntKeyedMap<String> assignIds(int[] oldIds, int firstId, MigrationManifest.Kind kind)
+    {
+        Map<String, String> known = (previous == null) ? Map.of() : previous.getIdMap(kind);
+        int nextId = (previous == null) ? firstId : Math.max(firstId, previous.getNextId(kind));
+
+        IntKeyedMap<String> ids = new IntKeyedMap<>(oldIds.length);
+        for (int oldId : oldIds)
+        {
+            String newId = known.get(String.valueOf(oldId));
+            ids.put(oldId, (newId != null) ? newId : String.valueOf(nextId++));
+        }
+        return ids;
+    }
+
     private void addValues(Node newNode, List<FieldValue> values)
     {
         values.forEach(oldValue -> {
@@ -73,38 +185,75 @@ public class DataRenumberer
         });
     }
     
+    /*
+     * All the fields' values are renumbered together, so that small fields
+     * are grouped and large ones split, then put back field by field.
+     */
     private void renumberValues(Map<String, List<FieldValue>> values, Map<String, String> nidMap)
     {
-        values.keySet().forEach(type -> {
-            values.put(
-                type,
-                values.get(type)
-                      .stream()
-                      .map(value -> renumberValue(value, nidMap))
-                      .collect(toList())
-            );
-        });
+        List<String> fields = new ArrayList<>(values.keySet());
+        List<FieldValue> oldValues = new ArrayList<>();
+        fields.forEach(field -> oldValues.addAll(values.get(field)));
+
+        FieldValue[] newValues = new FieldValue[oldValues.size()];
+        forEachIndex(itemSizes(newValues.length), ITEM_SPLIT_SIZE, i -> newValues[i] = renumberValue(oldValues.get(i), nidMap));
+
+        int start = 0;
+        for (String field : fields)
+        {
+            int end = start + values.get(field).size();
+            values.put(field, new ArrayList<>(Arrays.asList(newValues).subList(start, end)));
+            start = end;
+        }
     }
 
-    private FieldValue renumberValue(FieldValue oldValue, Map<String, String> nidMap)
+    /*
+     * Does the given work for each index, on the pool (if there is one).
+     * The sizes are cumulative: sizes[i] is the total size of the work
+     * for the indices up to and including i.
+     */
+    private void forEachIndex(long[] sizes, long splitSize, IntConsumer work)
     {
-        String newNid = nidMap.get(oldValue.getId());
-
-        FieldValue newValue;
-        if (oldValue.getField().getType().equals("nodereference"))
+        if ((pool == null) || (sizes.length == 0))
         {
-            if (!nidMap.containsKey(oldValue.getValue()))
+            for (int i = 0; i < sizes.length; i++)
             {
-                System.err.format("Unknown nid %s in field %s%n", oldValue.getValue(), oldValue);
+                work.accept(i);
             }
-            newValue = new FieldValue(newNid, oldValue.getDelta(), oldValue.getField(), nidMap.get(oldValue.getValue()));
-            oldValue.getExtra().forEach(newValue::addExtra);
         }
         else
         {
-            newValue = new FieldValue(newNid, oldValue);
+            pool.invoke(new RangeTask(sizes, splitSize, 0, sizes.length, work));
+        }
+    }
+
+    private static long[] textSizes(Node[] nodes)
+    {
+        long[] sizes = new long[nodes.length];
+        long total = 0;
+        for (int i = 0; i < nodes.length; i++)
+        {
+            total += 1 + nodes[i].getBody().length() + nodes[i].getSummary().map(String::length).orElse(0);
+            sizes[i] = total;
+        }
+        return sizes;
+    }
+
+    private static long[] itemSizes(int count)
+    {
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            sizes[i] = i + 1;
         }
-        return newValue;
+        return sizes;
+    }
+
+    /*package*/ FieldValue renumberValue(FieldValue oldValue, Map<String, String> nidMap)
+    {
+        String newNid = nidMap.get(oldValue.getId());
+
+        return oldValue.getField().getHandler().renumber(oldValue, newNid, nidMap, fidMap, diagnostics);
     }
 
     /*
@@ -121,8 +270,9 @@ public class DataRenumberer
 
     /*
      * Renumber the files and update the image map (nid -> fid).
+     * Files that fields refer to need not be images.
      */
-    private void renumberFiles(Map<String, File> files, Map<String, String> imageMap)
+    private void renumberFiles(Map<String, File> files, Map<String, String> imageMap, Set<String> references)
     {
         Map<String, String> reverseImageMap = imageMap.entrySet()
                 .stream()
@@ -132,36 +282,50 @@ public class DataRenumberer
                     )
                 );
         
-        List<String> fids = getSortedIds(files);
-        
-        for (int id = 0; id < fids.size(); id++)
+        int[] fids = IntKeyedMap.sortedKeys(files);
+        fidMap = assignIds(fids, 1, MigrationManifest.Kind.FILE);
+
+        List<File> newFiles = new ArrayList<>(fids.length);
+        for (int id : fids)
         {
-            String fid = fids.get(id);
-            File file = files.remove(fid);
-            file = new File(String.valueOf(id + 1), file);
-            files.put(file.getId(), file);
+            String fid = String.valueOf(id);
+            File file = new File(fidMap.get(id), files.get(fid));
+            newFiles.add(file);
             
-            if (!reverseImageMap.containsKey(fid))
+            String nid = reverseImageMap.get(fid);
+            if (nid == null)
             {
-                System.err.format("Unknown fid %s%n", fid);
+                if (references.contains(fid)) // Not an image, but a field's file
+                {
+                    continue;
+                }
+                diagnostics.report("Unknown fid", "%s", fid);
             }
             
             imageMap.put(
-                    reverseImageMap.get(fid),
+                    nid,
                     file.getId()
             );
         }
+
+        files.clear();
+        newFiles.forEach(file -> files.put(file.getId(), file));
     }
 
     private void renumberAliases(int startingNode, Map<String, Alias> aliases, Map<String, String> nidMap)
     {
-        List<String> ids = getSortedIds(aliases);
-        
-        for (int id = 0; id < ids.size(); id++)
+        int[] ids = IntKeyedMap.sortedKeys(aliases);
+        aliasMap = assignIds(ids, startingNode, MigrationManifest.Kind.ALIAS);
+
+        Alias[] newAliases = new Alias[ids.length];
+        forEachIndex(itemSizes(ids.length), ITEM_SPLIT_SIZE, i -> {
+            Alias alias = aliases.get(String.valueOf(ids[i]));
+            newAliases[i] = new Alias(aliasMap.get(ids[i]), convertPath(nidMap, alias.getPath()), convertAlias(nidMap, alias.getAlias()));
+        });
+
+        aliases.clear();
+        for (Alias alias : newAliases)
         {
-            String oldId = ids.get(id);
-            Alias alias = aliases.remove(oldId);
-            alias = new Alias(String.valueOf(startingNode + id), convertPath(nidMap, alias.getPath()), convertAlias(nidMap, alias.getAlias()));
             aliases.put(alias.getId(), alias);
         }
     }
@@ -193,7 +357,7 @@ public class DataRenumberer
             
             if (!nidMap.containsKey(oldNid))
             {
-                System.err.format("Unknown nid %s in path %s%n", oldNid, path);
+                diagnostics.report("Unknown nid in path", "%s in %s", oldNid, path);
             }
 
             path = prefix + "/" + nidMap.get(oldNid);
@@ -201,56 +365,132 @@ public class DataRenumberer
         return path;
     }
     
+    /*
+     * Rewrites the links in the given text in a single pass: "internal:"
+     * links and images become site-relative (as D9 does not have this
+     * module) and links to nodes are renumbered. Links to unknown nodes are
+     * left as they are. The text is only copied if something changes.
+     */
     /*package*/ String renumberPaths(Map<String, String> nidMap, String text)
     {
-        // Replace "internal:" links as D9 does not have this module.
-        String marker = "<a href=\"internal:";
-        if (text.contains(marker))
+        StringBuilder result = null;
+        int copied = 0; // Everything before this has been copied (if changed)
+        int from = 0;
+        int index;
+
+        while ((index = text.indexOf('<', from)) >= 0)
         {
-            text = text.replaceAll(marker, "<a href=\"/");
+            from = index + 1;
+
+            boolean link = text.startsWith(LINK_MARKER, index);
+            int path;
+            if (link)
+            {
+                path = index + LINK_MARKER.length();
+            }
+            else if (text.startsWith(IMAGE_MARKER, index))
+            {
+                path = index + IMAGE_MARKER.length();
+            }
+            else
+            {
+                continue;
+            }
+
+            int nid = -1;
+            if (text.startsWith(INTERNAL_MARKER, path))
+            {
+                result = copy(result, text, copied, path).append('/');
+                copied = path + INTERNAL_MARKER.length();
+                if (link && text.startsWith(INTERNAL_NODE_MARKER, copied))
+                {
+                    nid = copied + INTERNAL_NODE_MARKER.length();
+                }
+            }
+            else if (link && text.startsWith(NODE_MARKER, path))
+            {
+                nid = path + NODE_MARKER.length();
+            }
+            from = Math.max(from, copied);
+
+            int end = (nid < 0) ? -1 : text.indexOf('"', nid);
+            if (end < 0)
+            {
+                continue;
+            }
+
+            String oldNid = text.substring(nid, end);
+            String newNid = nidMap.get(oldNid);
+            if (newNid == null)
+            {
+                diagnostics.report("Unknown nid in link", "%s", oldNid);
+                continue;
+            }
+
+            result = copy(result, text, copied, nid).append(newNid);
+            copied = end;
+            from = end;
         }
-        marker = "<img src=\"internal:";
-        if (text.contains(marker))
+
+        if (result == null)
         {
-            text = text.replaceAll(marker, "<img src=\"/");
+            return text;
         }
+        return copy(result, text, copied, text.length()).toString();
+    }
 
-        marker = "<a href=\"/thing/";
-        if (text.contains(marker))
+    private static StringBuilder copy(StringBuilder result, String text, int start, int end)
+    {
+        if (result == null)
         {
-            String[] elts = text.split(marker);
+            result = new StringBuilder(text.length() + 16); // Room for a few longer nids
+        }
+        return result.append(text, start, end);
+    }
 
-            List<String> modifiedElements = new ArrayList<>();
-            modifiedElements.add(elts[0]);
+    /**
+     * Does some work for each index in a range, splitting the range in two
+     * (by the size of the work rather than the number of indices) until
+     * each piece is small enough to do in one go.
+     */
+    private static class RangeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
 
-            for (int i = 1; i < elts.length; i++)
+        private final long[] sizes;
+        private final long splitSize;
+        private final int from;
+        private final int to;
+        private final IntConsumer work;
+
+        RangeTask(long[] sizes, long splitSize, int from, int to, IntConsumer work)
+        {
+            this.sizes = sizes;
+            this.splitSize = splitSize;
+            this.from = from;
+            this.to = to;
+            this.work = work;
+        }
+
+        @Override
+        protected void compute()
+        {
+            long before = (from == 0) ? 0 : sizes[from - 1];
+            if ((to - from == 1) || (sizes[to - 1] - before <= splitSize))
             {
-                int index = elts[i].indexOf('"');
-                String oldNid = elts[i].substring(0, index);
-                if (nidMap.containsKey(oldNid))
-                {
-                    String newNid = nidMap.get(oldNid);
-                    String newLink = marker + newNid + elts[i].substring(index);
-                    modifiedElements.add(newLink);
-                }
-                else
+                for (int i = from; i < to; i++)
                 {
-                    System.err.format("Unknown nid %s in text: %s%n", oldNid, text);
+                    work.accept(i);
                 }
+                return;
             }
-            
-            text = modifiedElements.stream().collect(joining(""));
-        }
-        return text;
-    }
 
-    private List<String> getSortedIds(Map<String, ? extends Entity> entities)
-    {
-        return entities.keySet()
-                .stream()
-                .map(Integer::parseInt)
-                .sorted()
-                .map(Object::toString)
-                .collect(toList());
+            // Split where half the work is done, leaving at least one index on each side.
+            int mid = Arrays.binarySearch(sizes, from, to, before + (sizes[to - 1] - before) / 2);
+            mid = (mid < 0) ? -mid - 1 : mid + 1;
+            mid = Math.max(from + 1, Math.min(to - 1, mid));
+
+            invokeAll(new RangeTask(sizes, splitSize, from, mid, work), new RangeTask(sizes, splitSize, mid, to, work));
+        }
     }
 }
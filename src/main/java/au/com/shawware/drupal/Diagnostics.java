@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Collects the problems found in the data (orphaned rows, unknown IDs, etc.).
+ *
+ * Rather than reporting every occurrence, each category of problem is
+ * counted and only its first few examples are kept, so that messy data
+ * does not swamp the output. Reporting does not lock, so the workers can
+ * share a single instance.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class Diagnostics
+{
+    private static final int DEFAULT_SAMPLES = 5;
+
+    private final int maxSamples;
+    private final Map<String, Category> categories;
+
+    public Diagnostics()
+    {
+        this(DEFAULT_SAMPLES);
+    }
+
+    /**
+     * @param maxSamples the maximum number of examples to keep for each category
+     */
+    public Diagnostics(int maxSamples)
+    {
+        this.maxSamples = maxSamples;
+        this.categories = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Reports an occurrence of a problem. The example is only formatted
+     * if it is to be kept.
+     *
+     * @param category the category of problem
+     * @param format the format of the example
+     * @param args the example's arguments
+     */
+    public void report(String category, String format, Object... args)
+    {
+        Category counts = categories.get(category);
+        if (counts == null)
+        {
+            counts = categories.computeIfAbsent(category, name -> new Category(name, maxSamples));
+        }
+        counts.count.increment();
+        if (counts.samplesTaken.get() < maxSamples) // Only contend while there is room
+        {
+            int sample = counts.samplesTaken.getAndIncrement();
+            if (sample < maxSamples)
+            {
+                counts.samples.set(sample, String.format(format, args));
+            }
+        }
+    }
+
+    /**
+     * @param category the category of problem
+     *
+     * @return The number of times the given problem has been reported.
+     */
+    public long getCount(String category)
+    {
+        Category counts = categories.get(category);
+        return (counts == null) ? 0 : counts.count.sum();
+    }
+
+    /**
+     * @return Whether any problems have been reported.
+     */
+    public boolean isEmpty()
+    {
+        return categories.isEmpty();
+    }
+
+    /**
+     * @return A summary of the problems reported, by category, with their examples.
+     */
+    public String getSummary()
+    {
+        return categories.values()
+                .stream()
+                .sorted((c1, c2) -> c1.name.compareTo(c2.name))
+                .map(Category::toString)
+                .collect(joining("\n", "Problems: " + categories.size() + "\n", ""));
+    }
+
+    /**
+     * The counts and examples for a category of problem.
+     */
+    private static class Category
+    {
+        private final String name;
+        private final LongAdder count;
+        private final AtomicInteger samplesTaken;
+        private final AtomicReferenceArray<String> samples;
+
+        Category(String name, int maxSamples)
+        {
+            this.name = name;
+            this.count = new LongAdder();
+            this.samplesTaken = new AtomicInteger();
+            this.samples = new AtomicReferenceArray<>(maxSamples);
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder summary = new StringBuilder();
+            summary.append(name).append(": ").append(count.sum());
+            for (int i = 0; i < samples.length(); i++)
+            {
+                String sample = samples.get(i);
+                if (sample != null)
+                {
+                    summary.append("\n    ").append(sample);
+                }
+            }
+            return summary.toString();
+        }
+    }
+}
@@ -7,12 +7,17 @@
 
 package au.com.shawware.drupal;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 
 import static java.util.stream.Collectors.toMap;
@@ -26,62 +31,225 @@ import static java.util.stream.Collectors.groupingBy;
  */
 public class DrupalUpgrader
 {
+    private int threads;
+    private String snapshot;
+    private boolean snapshotHash;
+    private boolean lazy;
+    private boolean mergeJoin;
+    private String manifest;
+    private boolean revisions;
+    private boolean comments;
+    private Integer fetchSize;
+    private Properties dbProperties;
+
     public static void main(String[] args)
     {
-        if (args.length != 1)
+        DrupalUpgrader program = new DrupalUpgrader();
+
+        int argIndex = 0;
+        try
         {
-            System.err.println("usage: DrupalUpgrader <raw data>");
-            System.exit(1);
+            while ((argIndex < args.length - 1) && args[argIndex].startsWith("--"))
+            {
+                String option = args[argIndex++];
+                String value = args[argIndex++];
+                program.setOption(option, value);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            argIndex = -1;
         }
 
-        DrupalUpgrader program = new DrupalUpgrader();
+        if ((argIndex < 0) || (args.length - argIndex != 1))
+        {
+            System.err.println("usage: DrupalUpgrader [--threads <n>] [--snapshot <file>] [--snapshot-check <stat|hash>] [--load <eager|lazy>] [--join <hash|merge>] [--delta <manifest>] [--revisions <current|all>] [--comments <none|all>] [--fetch-size <rows|stream>] [--db-properties <file>] <raw data (JSON or SQL, - for stdin, or a JDBC URL)>");
+            System.err.println("       --snapshot is ignored for stdin, JDBC and lazily loaded JSON input");
+            System.err.println("       --comments and --revisions read the input again, so are not available for stdin");
+            System.err.println("       --db-properties holds the JDBC connection properties, eg. user and password");
+            System.exit(1);
+        }
 
-        System.exit(program.run(args[0]));
+        System.exit(program.run(args[argIndex]));
     }
 
     private DrupalUpgrader()
     {
+        this.threads = 1;
+        this.snapshot = null;
+        this.snapshotHash = false;
+        this.lazy = false;
+        this.mergeJoin = false;
+        this.manifest = null;
+        this.revisions = false;
+        this.comments = false;
+        this.fetchSize = null;
+        this.dbProperties = new Properties();
+    }
+
+    private void setOption(String option, String value)
+    {
+        if ("--threads".equals(option))
+        {
+            threads = Integer.parseInt(value);
+        }
+        else if ("--snapshot".equals(option))
+        {
+            snapshot = value;
+        }
+        else if ("--snapshot-check".equals(option))
+        {
+            if (!"stat".equals(value) && !"hash".equals(value))
+            {
+                throw new IllegalArgumentException("Unknown snapshot check: " + value);
+            }
+            snapshotHash = "hash".equals(value);
+        }
+        else if ("--load".equals(option))
+        {
+            if (!"eager".equals(value) && !"lazy".equals(value))
+            {
+                throw new IllegalArgumentException("Unknown load mode: " + value);
+            }
+            lazy = "lazy".equals(value);
+        }
+        else if ("--join".equals(option))
+        {
+            if (!"hash".equals(value) && !"merge".equals(value))
+            {
+                throw new IllegalArgumentException("Unknown join mode: " + value);
+            }
+            mergeJoin = "merge".equals(value);
+        }
+        else if ("--delta".equals(option))
+        {
+            manifest = value;
+        }
+        else if ("--revisions".equals(option))
+        {
+            if (!"current".equals(value) && !"all".equals(value))
+            {
+                throw new IllegalArgumentException("Unknown revisions mode: " + value);
+            }
+            revisions = "all".equals(value);
+        }
+        else if ("--comments".equals(option))
+        {
+            if (!"none".equals(value) && !"all".equals(value))
+            {
+                throw new IllegalArgumentException("Unknown comments mode: " + value);
+            }
+            comments = "all".equals(value);
+        }
+        else if ("--fetch-size".equals(option))
+        {
+            fetchSize = "stream".equals(value) ? JdbcRawDataLoader.STREAMING_FETCH_SIZE : Integer.parseInt(value);
+        }
+        else if ("--db-properties".equals(option))
+        {
+            try (Reader reader = Files.newBufferedReader(Paths.get(value)))
+            {
+                dbProperties.load(reader);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalArgumentException("Unable to read database properties: " + value, e);
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown option: " + option);
+        }
     }
 
     private int run(String filename)
     {
-        RawDataLoader loader = new RawDataLoader();
+        final String prefix = "uhm_";
+
+        StringDeduplicator deduplicator = new StringDeduplicator();
 
-        Map<String, RawTable> rawData = loader.loadData(Paths.get(filename));
+        RawDataLoader loader = new RawDataLoader()
+                .withThreads(threads)
+                .withColumnar(true)
+                .withDeduplicator(deduplicator);
+        if (snapshot != null)
+        {
+            loader.withSnapshot(new RawDataSnapshot(Paths.get(snapshot)).withContentHash(snapshotHash));
+            if (filename.startsWith("jdbc:") || "-".equals(filename) || (lazy && loader.isJson(Paths.get(filename))))
+            {
+                System.err.println("Snapshot ignored for this input: " + snapshot);
+            }
+        }
+
+        TableSelection selection = DataExtractor.getRequiredTables(prefix);
+
+        Map<String, RawTable> rawData;
+        if (filename.startsWith("jdbc:"))
+        {
+            rawData = createJdbcLoader(filename)
+                    .withThreads(threads)
+                    .withColumnar(true)
+                    .withDeduplicator(deduplicator)
+                    .loadData(selection);
+        }
+        else if ("-".equals(filename))
+        {
+            rawData = loader.loadData(System.in, selection);
+        }
+        else
+        {
+            rawData = lazy ? loader.loadLazily(Paths.get(filename), selection) : loader.loadData(Paths.get(filename), selection);
+        }
 
         System.err.format("Tables: %d%n", rawData.size());
+        System.err.println(deduplicator.getSummary());
+
+        Diagnostics diagnostics = new Diagnostics();
+
+        DataExtractor extractor = new DataExtractor(prefix, rawData)
+                .withMergeJoin(mergeJoin)
+                .withDiagnostics(diagnostics);
+
+        // Work-stealing keeps every thread busy when a few fields are much bigger than the rest.
+        ForkJoinPool pool = (threads > 1) ? new ForkJoinPool(threads) : null;
 
-        DataExtractor extractor = new DataExtractor("uhm_", rawData);
+        ExtractionResult result = (pool != null) ? extractor.extractInParallel(pool) : extractor.extract();
 
-        Map<String, Tag> tags = extractor.getTags();
+        Map<String, Tag> tags = result.getTags();
 
         System.err.format("Tags: %d%n", tags.size());
 
-        Map<String, Node> nodes = extractor.getNodes(tags);
+        Map<String, Node> nodes = result.getNodes();
 
         System.err.format("Nodes: %d%n", nodes.size());
 
-        Map<String, ContentType> types = extractor.getContentTypes();
+        Map<String, ContentType> types = result.getContentTypes();
 
         int numFields = types.values().stream().mapToInt(type -> type.getFields().size()).sum();
 
         System.err.format("Content Types: %d%n", types.size());
         System.err.format("Fields: %d%n", numFields);
 
-        Map<String, Alias> aliases = extractor.getAliases();
+        Map<String, Alias> aliases = result.getAliases();
         System.err.format("Aliases: %d%n", aliases.size());
 
-        Map<String, List<FieldValue>> values = extractor.getFieldValues(types, nodes);
+        Map<String, List<FieldValue>> values = result.getFieldValues();
 
         int numValues = values.values().stream().mapToInt(List::size).sum();
         System.err.format("Values: %d%n", numValues);
 
-        Map<String, File> files = extractor.getFiles();
+        Map<String, File> files = result.getFiles();
 
         System.err.format("Files: %d%n", files.size());
 
-        Map<String, String> imageMap = extractor.getImageMap(files, nodes);
+        Map<String, String> imageMap = result.getImageMap();
         System.err.format("Images: %d%n", imageMap.size());
+
+        if (rawData instanceof LazyRawData)
+        {
+            close((LazyRawData)rawData);
+        }
        
         aliases.values()
             .stream()
@@ -93,18 +261,180 @@ public class DrupalUpgrader
             .collect(toList())
             .forEach(System.err::println);
 
-        DataRenumberer renumberer = new DataRenumberer();
+        MigrationManifest previous = null;
+        MigrationManifest current = null;
+        if (manifest != null)
+        {
+            previous = MigrationManifest.read(Paths.get(manifest)).orElse(null);
+            current = MigrationManifest.describe(nodes, tags, aliases, files);
+        }
+
+        DataRenumberer renumberer = new DataRenumberer()
+                .withDiagnostics(diagnostics)
+                .withPrevious(previous)
+                .withPool(pool);
         
         renumberer.renumberContent(3, nodes, values, files, imageMap, aliases);
 
-        DataGenerator generator = new DataGenerator("sw_uhm", "d9c_");
+        SqlGenerator sql = new SqlGenerator()
+                .withDiagnostics(diagnostics);
+
+        RevisionMigrator history = null;
+        if (revisions)
+        {
+            history = new RevisionMigrator(prefix, "sw_uhm", "d9c_", types, nodes, renumberer, sql)
+                    .withDiagnostics(diagnostics);
+        }
+
+        MigrationDelta delta = null;
+        if (current != null)
+        {
+            current.setIds(MigrationManifest.Kind.NODE, renumberer.getNidMap(), previous);
+            current.setIds(MigrationManifest.Kind.TAG, tags.keySet().stream().collect(toMap(Function.identity(), Function.identity())), previous);
+            current.setIds(MigrationManifest.Kind.ALIAS, renumberer.getAliasMap(), previous);
+            current.setIds(MigrationManifest.Kind.FILE, renumberer.getFidMap(), previous);
+            if (previous != null)
+            {
+                delta = MigrationDelta.between(previous, current);
+                System.err.println(delta.getSummary());
+                delta.retainUpdated(nodes, tags, aliases, files, imageMap, values);
+                if (history != null)
+                {
+                    history.withUpsert(true)
+                            .withUpdated(delta.getUpdated(MigrationManifest.Kind.NODE))
+                            .withDeleted(delta.getDeleted(MigrationManifest.Kind.NODE));
+                }
+            }
+        }
+
+        DataGenerator generator = new DataGenerator("sw_uhm", "d9c_")
+                .withDiagnostics(diagnostics)
+                .withRevisions(revisions)
+                .withPool(pool);
 
         generator.generate(types, nodes, tags, imageMap, files, aliases, values);
 
-        SqlGenerator sql = new SqlGenerator();
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+
+        if (delta != null)
+        {
+            sql.generateDelta(generator.getData(), delta, System.out);
+        }
+        else
+        {
+            sql.generate(generator.getData(), System.out);
+        }
+
+        if (comments)
+        {
+            migrateComments(filename, prefix, renumberer.getNidMap(), sql, diagnostics, delta);
+        }
+
+        if (history != null)
+        {
+            migrateRevisions(filename, prefix, history);
+        }
+
+        if (current != null)
+        {
+            current.write(Paths.get(manifest));
+        }
 
-        sql.generate(generator.getData(), System.out);
+        if (!diagnostics.isEmpty())
+        {
+            System.err.println(diagnostics.getSummary());
+        }
 
         return 0;
     }
+
+    /*
+     * The comments are read again from the input, as they are streamed
+     * straight to the output, so they cannot come from stdin. As this
+     * parses the whole input again (whatever the snapshot or load mode),
+     * they are only migrated when asked for.
+     */
+    private void migrateComments(String filename, String prefix, Map<String, String> nidMap, SqlGenerator sql, Diagnostics diagnostics, MigrationDelta delta)
+    {
+        if ("-".equals(filename))
+        {
+            System.err.println("Comments cannot be migrated from stdin");
+            return;
+        }
+
+        TableSelection selection = CommentMigrator.getRequiredTables(prefix);
+        CommentMigrator migrator = new CommentMigrator(prefix, "sw_uhm", "d9c_", nidMap, sql)
+                .withDiagnostics(diagnostics);
+        if (delta != null)
+        {
+            migrator.withUpsert(true)
+                    .withUpdated(delta.getUpdated(MigrationManifest.Kind.NODE))
+                    .withDeleted(delta.getDeleted(MigrationManifest.Kind.NODE));
+        }
+
+        if (filename.startsWith("jdbc:"))
+        {
+            JdbcRawDataLoader loader = createJdbcLoader(filename);
+            migrator.migrate(handler -> loader.streamData(selection, handler), System.out);
+        }
+        else
+        {
+            RawDataLoader loader = new RawDataLoader();
+            migrator.migrate(handler -> loader.streamData(Paths.get(filename), selection, handler), System.out);
+        }
+
+        System.err.format("Comments: %d%n", migrator.getCount());
+    }
+
+    /*
+     * As with the comments, the revisions are read again from the input.
+     */
+    private void migrateRevisions(String filename, String prefix, RevisionMigrator history)
+    {
+        if ("-".equals(filename))
+        {
+            System.err.println("Revisions cannot be migrated from stdin");
+            return;
+        }
+
+        TableSelection selection = RevisionMigrator.getRequiredTables(prefix);
+
+        if (filename.startsWith("jdbc:"))
+        {
+            JdbcRawDataLoader loader = createJdbcLoader(filename);
+            history.migrate(handler -> loader.streamData(selection, handler), System.out);
+        }
+        else
+        {
+            RawDataLoader loader = new RawDataLoader();
+            history.migrate(handler -> loader.streamData(Paths.get(filename), selection, handler), System.out);
+        }
+
+        System.err.format("Revisions: %d%n", history.getCount());
+    }
+
+    private JdbcRawDataLoader createJdbcLoader(String url)
+    {
+        JdbcRawDataLoader loader = new JdbcRawDataLoader(url, dbProperties);
+        if (fetchSize != null)
+        {
+            loader.withFetchSize(fetchSize);
+        }
+        return loader;
+    }
+
+    private void close(LazyRawData rawData)
+    {
+        try
+        {
+            rawData.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Unable to close raw data: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Locates each table within a phpMyAdmin JSON export without parsing it.
+ *
+ * A byte-level scan tracks strings and nesting to find the start and end
+ * of each top-level object. This is safe for UTF-8 as the bytes we look for
+ * never occur within a multi-byte character. Only the head of each object
+ * is then parsed to find the table's name.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class ExportIndex
+{
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final List<Segment> segments;
+
+    private ExportIndex(List<Segment> segments)
+    {
+        this.segments = segments;
+    }
+
+    /**
+     * Builds the index for the given export.
+     *
+     * @param channel the export
+     *
+     * @return The index.
+     *
+     * @throws IOException if the export cannot be read or is not valid
+     */
+    public static ExportIndex build(FileChannel channel)
+        throws IOException
+    {
+        List<long[]> bounds = scan(channel);
+
+        JsonFactory factory = new JsonFactory();
+
+        List<Segment> segments = new ArrayList<>();
+        for (long[] bound : bounds)
+        {
+            Segment segment = readHead(factory, channel, bound[0], bound[1]);
+            if (segment != null)
+            {
+                segments.add(segment);
+            }
+        }
+
+        return new ExportIndex(Collections.unmodifiableList(segments));
+    }
+
+    /**
+     * @return The tables in the order they appear in the export.
+     */
+    public List<Segment> getSegments()
+    {
+        return segments;
+    }
+
+    /*
+     * Finds the [start, end) offsets of each object within the top-level array.
+     */
+    private static List<long[]> scan(FileChannel channel)
+        throws IOException
+    {
+        List<long[]> bounds = new ArrayList<>();
+
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        long start = -1;
+        long offset = 0;
+
+        try (InputStream input = new MappedInputStream(channel, 0, channel.size()))
+        {
+            int count;
+            while ((count = input.read(chunk, 0, chunk.length)) > 0)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    byte b = chunk[i];
+                    if (inString)
+                    {
+                        if (escaped)
+                        {
+                            escaped = false;
+                        }
+                        else if (b == '\\')
+                        {
+                            escaped = true;
+                        }
+                        else if (b == '"')
+                        {
+                            inString = false;
+                        }
+                    }
+                    else if (b == '"')
+                    {
+                        inString = true;
+                    }
+                    else if ((b == '{') || (b == '['))
+                    {
+                        depth++;
+                        if ((depth == 2) && (b == '{'))
+                        {
+                            start = offset + i;
+                        }
+                    }
+                    else if ((b == '}') || (b == ']'))
+                    {
+                        if ((depth == 2) && (b == '}'))
+                        {
+                            bounds.add(new long[] { start, offset + i + 1 });
+                        }
+                        depth--;
+                    }
+                }
+                offset += count;
+            }
+        }
+
+        if ((depth != 0) || inString)
+        {
+            throw new IOException("Export is incomplete or not valid JSON");
+        }
+
+        return bounds;
+    }
+
+    /*
+     * Parses just enough of the object to find its name, stopping before
+     * the data where possible. Returns null for objects that are not
+     * tables, eg. the header.
+     */
+    private static Segment readHead(JsonFactory factory, FileChannel channel, long start, long end)
+        throws IOException
+    {
+        String database = null;
+        String tableName = null;
+        String type = null;
+        boolean found = false;
+
+        try (JsonParser parser = factory.createParser(new MappedInputStream(channel, start, end)))
+        {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+            {
+                throw new IOException("Expected a table at offset: " + start);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("database".equals(field))
+                {
+                    database = parser.getValueAsString();
+                }
+                else if ("name".equals(field))
+                {
+                    tableName = parser.getValueAsString();
+                }
+                else if ("type".equals(field))
+                {
+                    type = parser.getValueAsString();
+                }
+                else if ("data".equals(field))
+                {
+                    found = true;
+                    if (tableName != null)
+                    {
+                        break;
+                    }
+                    parser.skipChildren();
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+                if ((tableName != null) && (database != null) && "table".equals(type))
+                {
+                    break;
+                }
+            }
+        }
+
+        if (!found && !"table".equals(type))
+        {
+            return null;
+        }
+        if (tableName == null)
+        {
+            throw new IOException("Table data found without a name at offset: " + start);
+        }
+        return new Segment(database, tableName, start, end);
+    }
+
+    /**
+     * The location of a single table within the export.
+     */
+    static class Segment
+    {
+        private final String database;
+        private final String tableName;
+        private final long start;
+        private final long end;
+
+        Segment(String database, String tableName, long start, long end)
+        {
+            this.database = database;
+            this.tableName = tableName;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getDatabase()
+        {
+            return database;
+        }
+
+        public String getTableName()
+        {
+            return tableName;
+        }
+
+        public long getStart()
+        {
+            return start;
+        }
+
+        public long getEnd()
+        {
+            return end;
+        }
+
+        public long getSize()
+        {
+            return end - start;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "{ " + database + "::" + tableName + ", " + start + ", " + end + " }";
+        }
+    }
+}
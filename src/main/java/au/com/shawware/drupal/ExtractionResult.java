@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds everything extracted from the raw data.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class ExtractionResult
+{
+    private final Map<String, Tag> tags;
+    private final Map<String, Node> nodes;
+    private final Map<String, ContentType> types;
+    private final Map<String, Alias> aliases;
+    private final Map<String, List<FieldValue>> values;
+    private final Map<String, File> files;
+    private final Map<String, String> imageMap;
+
+    /*package*/ ExtractionResult(
+            Map<String, Tag> tags,
+            Map<String, Node> nodes,
+            Map<String, ContentType> types,
+            Map<String, Alias> aliases,
+            Map<String, List<FieldValue>> values,
+            Map<String, File> files,
+            Map<String, String> imageMap
+        )
+    {
+        this.tags = tags;
+        this.nodes = nodes;
+        this.types = types;
+        this.aliases = aliases;
+        this.values = values;
+        this.files = files;
+        this.imageMap = imageMap;
+    }
+
+    public Map<String, Tag> getTags()
+    {
+        return tags;
+    }
+
+    public Map<String, Node> getNodes()
+    {
+        return nodes;
+    }
+
+    public Map<String, ContentType> getContentTypes()
+    {
+        return types;
+    }
+
+    public Map<String, Alias> getAliases()
+    {
+        return aliases;
+    }
+
+    public Map<String, List<FieldValue>> getFieldValues()
+    {
+        return values;
+    }
+
+    public Map<String, File> getFiles()
+    {
+        return files;
+    }
+
+    public Map<String, String> getImageMap()
+    {
+        return imageMap;
+    }
+}
@@ -16,11 +16,13 @@ public class Field
 {
     private final String name;
     private final String type;
+    private final FieldTypeHandler handler;
 
     public Field(String name, String type)
     {
         this.name = name;
         this.type = type;
+        this.handler = FieldTypeHandlers.forType(type);
     }
 
     public String getName()
@@ -33,6 +35,14 @@ public class Field
         return type;
     }
 
+    /**
+     * @return The handler for this field's type.
+     */
+    public FieldTypeHandler getHandler()
+    {
+        return handler;
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handles the values of a particular type of field: where they are found
+ * in the raw data, how they are renumbered and how they are output.
+ *
+ * Each field is bound to its type's handler once, when it is defined,
+ * so the values are processed without looking at their type again.
+ * See {@link FieldTypeHandlers} for the handlers available.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public interface FieldTypeHandler
+{
+    /**
+     * @return The field type handled.
+     */
+    String getType();
+
+    /**
+     * @return The suffix of the raw column holding the field's value.
+     */
+    default String getValueColumn()
+    {
+        return "value";
+    }
+
+    /**
+     * @return The suffix of the raw column holding the value's title (if any).
+     */
+    default String getTitleColumn()
+    {
+        return null;
+    }
+
+    /**
+     * @return Whether the field's values are file IDs, whose files are to be migrated.
+     */
+    default boolean refersToFiles()
+    {
+        return false;
+    }
+
+    /**
+     * Renumbers a value for its node's new ID.
+     *
+     * @param value the value
+     * @param newNid the node's new ID
+     * @param nidMap the map of old node IDs to new ones
+     * @param fidMap the map of old file IDs to new ones
+     * @param diagnostics where to report any problems
+     *
+     * @return The renumbered value.
+     */
+    default FieldValue renumber(FieldValue value, String newNid, Map<String, String> nidMap, Map<String, String> fidMap, Diagnostics diagnostics)
+    {
+        return new FieldValue(newNid, value);
+    }
+
+    /**
+     * Adds the columns that hold the field's values in the output.
+     *
+     * @param prefix the prefix of the output columns' names
+     * @param columns the columns to add to
+     */
+    void addColumns(String prefix, List<Column<FieldValue>> columns);
+}
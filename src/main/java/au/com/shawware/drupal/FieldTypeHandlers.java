@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry of field type handlers, keyed by field type.
+ *
+ * The handlers for the CCK types we know about are registered up front.
+ * Others can be added, but must be registered before any fields of their
+ * type are defined, as fields bind to their handler when they are created.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public final class FieldTypeHandlers
+{
+    private static final String NULL = "NULL";
+
+    private static final Map<String, FieldTypeHandler> HANDLERS = new ConcurrentHashMap<>();
+
+    static
+    {
+        register(new LinkHandler());
+        register(new NodeReferenceHandler());
+        register(new ImageHandler());
+        register(new ValueHandler("number", Columns.NUMBER));
+        register(new ValueHandler("date", Columns.TEXT));
+        register(new ValueHandler("text", Columns.HTML));
+        register(new FileHandler());
+        register(new UserReferenceHandler());
+        register(new DateTimeHandler());
+    }
+
+    private FieldTypeHandlers()
+    {
+    }
+
+    /**
+     * Registers the handler for a field type, replacing any existing one.
+     *
+     * @param handler the handler
+     */
+    public static void register(FieldTypeHandler handler)
+    {
+        HANDLERS.put(handler.getType(), handler);
+    }
+
+    /**
+     * @param type the field type
+     *
+     * @return Whether there is a handler for the given field type.
+     */
+    public static boolean isRegistered(String type)
+    {
+        return HANDLERS.containsKey(type);
+    }
+
+    /**
+     * Retrieves the handler for the given field type. Unknown types are
+     * read and written as plain values, with a column type of "error".
+     *
+     * @param type the field type
+     *
+     * @return The handler.
+     */
+    public static FieldTypeHandler forType(String type)
+    {
+        FieldTypeHandler handler = HANDLERS.get(type);
+        return (handler != null) ? handler : new ValueHandler(type, "error");
+    }
+
+    /*
+     * The new file for a value's file, as the files that fields refer to
+     * are migrated. A file that is not there is reported and (like an
+     * unknown node) given no target, rather than referred to by its old ID.
+     */
+    private static FieldValue renumberFile(FieldValue value, String newNid, Map<String, String> fidMap, Diagnostics diagnostics)
+    {
+        String target = fidMap.get(value.getValue());
+        if (target == null)
+        {
+            diagnostics.report("Unknown fid in field", "%s in %s", value.getValue(), value);
+        }
+        return withTarget(value, newNid, target);
+    }
+
+    private static FieldValue withTarget(FieldValue value, String newNid, String target)
+    {
+        FieldValue newValue = new FieldValue(newNid, value.getDelta(), value.getField(), target);
+        value.getExtra().forEach(newValue::addExtra);
+        return newValue;
+    }
+
+    /**
+     * A field with a single value column.
+     */
+    private static class ValueHandler implements FieldTypeHandler
+    {
+        private final String type;
+        private final String columnType;
+
+        ValueHandler(String type, String columnType)
+        {
+            this.type = type;
+            this.columnType = columnType;
+        }
+
+        @Override
+        public String getType()
+        {
+            return type;
+        }
+
+        @Override
+        public void addColumns(String prefix, List<Column<FieldValue>> columns)
+        {
+            columns.add(new Column<>(prefix + "value", columnType, FieldValue::getValue));
+        }
+    }
+
+    private static class LinkHandler implements FieldTypeHandler
+    {
+        @Override
+        public String getType()
+        {
+            return "link";
+        }
+
+        @Override
+        public String getValueColumn()
+        {
+            return "url";
+        }
+
+        @Override
+        public String getTitleColumn()
+        {
+            return "title";
+        }
+
+        @Override
+        public void addColumns(String prefix, List<Column<FieldValue>> columns)
+        {
+            columns.add(new Column<>(prefix + "uri", Columns.HTML, FieldValue::getValue));
+            columns.add(new Column<>(prefix + "title", Columns.HTML, value -> value.getExtra("title")));
+            columns.add(new Column<>(prefix + "options", Columns.TEXT, (v) -> "a:0:{}"));
+        }
+    }
+
+    private static class NodeReferenceHandler implements FieldTypeHandler
+    {
+        @Override
+        public String getType()
+        {
+            return "nodereference";
+        }
+
+        @Override
+        public String getValueColumn()
+        {
+            return "nid";
+        }
+
+        @Override
+        public FieldValue renumber(FieldValue value, String newNid, Map<String, String> nidMap, Map<String, String> fidMap, Diagnostics diagnostics)
+        {
+            String target = nidMap.get(value.getValue());
+            if (target == null)
+            {
+                diagnostics.report("Unknown nid in field", "%s in %s", value.getValue(), value);
+            }
+            return withTarget(value, newNid, target);
+        }
+
+        @Override
+        public void addColumns(String prefix, List<Column<FieldValue>> columns)
+        {
+            columns.add(new Column<>(prefix + "target_id", Columns.NUMBER, FieldValue::getValue));
+        }
+    }
+
+    private static class ImageHandler implements FieldTypeHandler
+    {
+        @Override
+        public String getType()
+        {
+            return "image";
+        }
+
+        @Override
+        public void addColumns(String prefix, List<Column<FieldValue>> columns)
+        {
+            columns.add(new Column<>(prefix + "target_id", Columns.NUMBER, FieldValue::getValue));
+            columns.add(new Column<>(prefix + "alt", Columns.HTML, value -> value.getExtra("title")));
+            columns.add(new Column<>(prefix + "title", Columns.HTML, value -> value.getExtra("title")));
+            columns.add(new Column<>(prefix + "width", Columns.NUMBER, (v) -> NULL));
+            columns.add(new Column<>(prefix + "height", Columns.NUMBER, (v) -> NULL));
+        }
+    }
+
+    private static class FileHandler implements FieldTypeHandler
+    {
+        @Override
+        public String getType()
+        {
+            return "filefield";
+        }
+
+        @Override
+        public String getValueColumn()
+        {
+            return "fid";
+        }
+
+        @Override
+        public boolean refersToFiles()
+        {
+            return true;
+        }
+
+        @Override
+        public FieldValue renumber(FieldValue value, String newNid, Map<String, String> nidMap, Map<String, String> fidMap, Diagnostics diagnostics)
+        {
+            return renumberFile(value, newNid, fidMap, diagnostics);
+        }
+
+        @Override
+        public void addColumns(String prefix, List<Column<FieldValue>> columns)
+        {
+            columns.add(new Column<>(prefix + "target_id", Columns.NUMBER, FieldValue::getValue));
+            columns.add(new Column<>(prefix + "display", Columns.NUMBER, (v) -> "1"));
+            columns.add(new Column<>(prefix + "description", Columns.TEXT, (v) -> NULL));
+        }
+    }
+
+    /**
+     * User IDs are carried over as is, so there is nothing to renumber.
+     */
+    private static class UserReferenceHandler implements FieldTypeHandler
+    {
+        @Override
+        public String getType()
+        {
+            return "userreference";
+        }
+
+        @Override
+        public String getValueColumn()
+        {
+            return "uid";
+        }
+
+        @Override
+        public void addColumns(String prefix, List<Column<FieldValue>> columns)
+        {
+            columns.add(new Column<>(prefix + "target_id", Columns.NUMBER, FieldValue::getValue));
+        }
+    }
+
+    /**
+     * D7 holds date-times as "yyyy-MM-dd HH:mm:ss", whereas D9 expects ISO 8601.
+     */
+    private static class DateTimeHandler implements FieldTypeHandler
+    {
+        @Override
+        public String getType()
+        {
+            return "datetime";
+        }
+
+        @Override
+        public void addColumns(String prefix, List<Column<FieldValue>> columns)
+        {
+            columns.add(new Column<>(prefix + "value", Columns.TEXT, value -> toIso(value.getValue())));
+        }
+
+        private static String toIso(String dateTime)
+        {
+            return (dateTime == null) ? null : dateTime.replace(' ', 'T');
+        }
+    }
+}
@@ -22,6 +22,7 @@ public class FieldValue extends Entity
     private final Field field;
     private final String value;
     private final Map<String, String> extra;
+    private String revisionId;
 
     public FieldValue(String id, String delta, Field field, String value)
     {
@@ -54,6 +55,19 @@ public class FieldValue extends Entity
         return value;
     }
 
+    /**
+     * @return The ID of the revision this value belongs to (by default, the node's ID).
+     */
+    public String getRevisionId()
+    {
+        return (revisionId != null) ? revisionId : getId();
+    }
+
+    public void setRevisionId(String revisionId)
+    {
+        this.revisionId = revisionId;
+    }
+
     public Map<String, String> getExtra()
     {
         return extra;
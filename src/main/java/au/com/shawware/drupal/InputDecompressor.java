@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * Detects compressed input by its magic bytes and decompresses it as a stream.
+ *
+ * Decompression runs on its own thread, a bounded number of chunks ahead
+ * of the caller, so that inflating and parsing overlap. No temporary files
+ * are needed. Uncompressed input is passed through as is.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class InputDecompressor
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int MAX_CHUNKS = 8;
+
+    private static final byte[] GZIP_MAGIC = { (byte)0x1F, (byte)0x8B };
+    private static final byte[] XZ_MAGIC = { (byte)0xFD, '7', 'z', 'X', 'Z', 0 };
+
+    /**
+     * Decompresses the given input if it is compressed.
+     *
+     * @param input the possibly compressed input
+     *
+     * @return The uncompressed data.
+     *
+     * @throws IOException if the input cannot be read
+     */
+    public InputStream decompress(InputStream input)
+        throws IOException
+    {
+        BufferedInputStream buffered = new BufferedInputStream(input, BUFFER_SIZE);
+
+        InputStream decompressed;
+        if (startsWith(buffered, GZIP_MAGIC))
+        {
+            decompressed = new GZIPInputStream(buffered, BUFFER_SIZE);
+        }
+        else if (startsWith(buffered, XZ_MAGIC))
+        {
+            decompressed = new XZInputStream(buffered);
+        }
+        else
+        {
+            return buffered;
+        }
+
+        return new PipelinedInputStream(decompressed, "decompressor", CHUNK_SIZE, MAX_CHUNKS);
+    }
+
+    private boolean startsWith(InputStream input, byte[] magic)
+        throws IOException
+    {
+        input.mark(magic.length);
+        try
+        {
+            for (byte b : magic)
+            {
+                if (input.read() != (b & 0xFF))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            input.reset();
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * Maps (non-negative) int IDs to values, without boxing the IDs or
+ * creating an entry for each mapping.
+ *
+ * The IDs are held in an open-addressing (linear probing) table.
+ * Drupal's IDs are decimal strings, so this can also be used as a map
+ * keyed by those strings. Keys that are not the canonical form of an ID
+ * (eg. "007" or "node") are never present and cannot be added.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class IntKeyedMap<V> extends AbstractMap<String, V>
+{
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NOT_AN_ID = -1;
+    private static final Object NULL_VALUE = new Object(); // Distinguishes a null value from an empty slot
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntKeyedMap()
+    {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the expected number of mappings
+     */
+    public IntKeyedMap(int expectedSize)
+    {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) // Keep at most 75% full
+        {
+            capacity <<= 1;
+        }
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Collects entities into a map keyed by their (int) IDs.
+     *
+     * @param <T> the type of entity
+     * @param id extracts each entity's ID
+     *
+     * @return The collector.
+     *
+     * @throws IllegalStateException if two entities have the same ID
+     */
+    public static <T> Collector<T, ?, IntKeyedMap<T>> toIntKeyedMap(Function<? super T, String> id)
+    {
+        return Collector.of(
+                IntKeyedMap::new,
+                (map, entity) -> {
+                    String key = id.apply(entity);
+                    if (map.putIfAbsent(key, entity) != null)
+                    {
+                        throw new IllegalStateException("Duplicate key " + key);
+                    }
+                },
+                (left, right) -> {
+                    right.forEach((key, entity) -> {
+                        if (left.putIfAbsent(key, entity) != null)
+                        {
+                            throw new IllegalStateException("Duplicate key " + key);
+                        }
+                    });
+                    return left;
+                }
+            );
+    }
+
+    /**
+     * Retrieves the given map's IDs in ascending order, without parsing
+     * them if it is already keyed by int.
+     *
+     * @param map the map
+     *
+     * @return The sorted IDs.
+     */
+    public static int[] sortedKeys(Map<String, ?> map)
+    {
+        if (map instanceof IntKeyedMap)
+        {
+            return ((IntKeyedMap<?>)map).sortedKeys();
+        }
+        return map.keySet()
+                .stream()
+                .mapToInt(Integer::parseInt)
+                .sorted()
+                .toArray();
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    public V get(int key)
+    {
+        int slot = find(key);
+        return (slot < 0) ? null : unmask(values[slot]);
+    }
+
+    public boolean containsKey(int key)
+    {
+        return find(key) >= 0;
+    }
+
+    public V put(int key, V value)
+    {
+        if (key < 0)
+        {
+            throw new IllegalArgumentException("Invalid ID: " + key);
+        }
+        int slot = find(key);
+        if (slot >= 0)
+        {
+            V previous = unmask(values[slot]);
+            values[slot] = mask(value);
+            return previous;
+        }
+        if ((size + 1) * 4 > values.length * 3)
+        {
+            resize(values.length << 1);
+            slot = find(key);
+        }
+        slot = -slot - 1;
+        keys[slot] = key;
+        values[slot] = mask(value);
+        size++;
+        return null;
+    }
+
+    public V remove(int key)
+    {
+        int slot = find(key);
+        if (slot < 0)
+        {
+            return null;
+        }
+        V previous = unmask(values[slot]);
+        delete(slot);
+        return previous;
+    }
+
+    /**
+     * @return This map's IDs, in ascending order.
+     */
+    public int[] sortedKeys()
+    {
+        int[] sorted = new int[size];
+        int count = 0;
+        for (int slot = 0; slot < values.length; slot++)
+        {
+            if (values[slot] != null)
+            {
+                sorted[count++] = keys[slot];
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        int id = toId(key);
+        return (id == NOT_AN_ID) ? null : get(id);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        int id = toId(key);
+        return (id != NOT_AN_ID) && containsKey(id);
+    }
+
+    @Override
+    public V put(String key, V value)
+    {
+        int id = toId(key);
+        if (id == NOT_AN_ID)
+        {
+            throw new IllegalArgumentException("Invalid ID: " + key);
+        }
+        return put(id, value);
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        int id = toId(key);
+        return (id == NOT_AN_ID) ? null : remove(id);
+    }
+
+    @Override
+    public void clear()
+    {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * The entries, keyed by the IDs' strings. Entries cannot be removed
+     * through this view, but their values can be set.
+     */
+    @Override
+    public Set<Entry<String, V>> entrySet()
+    {
+        return new AbstractSet<Entry<String, V>>()
+        {
+            @Override
+            public Iterator<Entry<String, V>> iterator()
+            {
+                return new Iterator<Entry<String, V>>()
+                {
+                    private int slot = advance(0);
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return slot < values.length;
+                    }
+
+                    @Override
+                    public Entry<String, V> next()
+                    {
+                        if (!hasNext())
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, V> entry = new SlotEntry(slot);
+                        slot = advance(slot + 1);
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+        };
+    }
+
+    private int advance(int slot)
+    {
+        while ((slot < values.length) && (values[slot] == null))
+        {
+            slot++;
+        }
+        return slot;
+    }
+
+    /*
+     * Returns the key's slot, or (-insertion point - 1) if it is absent.
+     */
+    private int find(int key)
+    {
+        int mask = values.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null)
+        {
+            if (keys[slot] == key)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /*
+     * Removes the given slot's mapping, shifting back any later mappings
+     * that would otherwise no longer be found.
+     */
+    private void delete(int slot)
+    {
+        int mask = values.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (values[next] != null)
+        {
+            int home = hash(keys[next]) & mask;
+            // Move it into the gap unless its home lies (cyclically) after the gap.
+            if (((next - home) & mask) >= ((next - gap) & mask))
+            {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = null;
+        size--;
+    }
+
+    private void resize(int capacity)
+    {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new int[capacity];
+        values = new Object[capacity];
+
+        for (int slot = 0; slot < oldValues.length; slot++)
+        {
+            if (oldValues[slot] != null)
+            {
+                int newSlot = -find(oldKeys[slot]) - 1;
+                keys[newSlot] = oldKeys[slot];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9; // Spread sequential IDs
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Converts the given key to an ID, provided it is the canonical
+     * decimal form of a non-negative int.
+     */
+    private static int toId(Object key)
+    {
+        if (!(key instanceof String))
+        {
+            return NOT_AN_ID;
+        }
+        String s = (String)key;
+        int length = s.length();
+        if ((length == 0) || (length > 10) || ((length > 1) && (s.charAt(0) == '0')))
+        {
+            return NOT_AN_ID;
+        }
+        long id = 0;
+        for (int i = 0; i < length; i++)
+        {
+            char c = s.charAt(i);
+            if ((c < '0') || (c > '9'))
+            {
+                return NOT_AN_ID;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return (id > Integer.MAX_VALUE) ? NOT_AN_ID : (int)id;
+    }
+
+    private static Object mask(Object value)
+    {
+        return (value == null) ? NULL_VALUE : value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V unmask(Object value)
+    {
+        return (value == NULL_VALUE) ? null : (V)value;
+    }
+
+    /**
+     * A view of a single slot's mapping.
+     */
+    private class SlotEntry implements Entry<String, V>
+    {
+        private final int key;
+        private final int slot;
+
+        SlotEntry(int slot)
+        {
+            this.key = keys[slot];
+            this.slot = slot;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return String.valueOf(key);
+        }
+
+        @Override
+        public V getValue()
+        {
+            return unmask(values[slot]);
+        }
+
+        @Override
+        public V setValue(V value)
+        {
+            V previous = getValue();
+            values[slot] = mask(value);
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Entry))
+            {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>)other;
+            return getKey().equals(entry.getKey()) &&
+                   ((getValue() == null) ? (entry.getValue() == null) : getValue().equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return getKey().hashCode() ^ ((getValue() == null) ? 0 : getValue().hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Loads the raw Drupal data straight from a live database, rather than
+ * from an export of it.
+ *
+ * Only the selected tables and columns are queried. Each table is read
+ * on its own connection through a forward-only, read-only result set,
+ * so the driver can stream the rows rather than hold them all at once.
+ * Tables are read in parallel, each by a single thread.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class JdbcRawDataLoader
+{
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * The fetch size that makes MySQL's driver stream rows one at a time.
+     */
+    public static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
+    private final String url;
+    private final Properties properties;
+    private int threads;
+    private int fetchSize;
+    private boolean columnar;
+    private StringDeduplicator deduplicator;
+
+    /**
+     * @param url the database's JDBC URL
+     * @param properties the connection properties, eg. user and password
+     */
+    public JdbcRawDataLoader(String url, Properties properties)
+    {
+        this.url = url;
+        this.properties = properties;
+        this.threads = 1;
+        this.fetchSize = defaultFetchSize(url);
+        this.columnar = false;
+        this.deduplicator = null;
+    }
+
+    /**
+     * Sets the number of tables read at once, each on its own connection.
+     *
+     * @param threads the number of threads (1 to read serially)
+     *
+     * @return This loader.
+     */
+    public JdbcRawDataLoader withThreads(int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /*
+     * MySQL's driver holds a whole result set in memory unless the fetch
+     * size is Integer.MIN_VALUE or the URL asks for cursor fetches. Other
+     * drivers honour the fetch size (and reject a negative one).
+     */
+    private static int defaultFetchSize(String url)
+    {
+        if (url.startsWith("jdbc:mysql:") && !url.contains("useCursorFetch=true"))
+        {
+            return STREAMING_FETCH_SIZE;
+        }
+        return DEFAULT_FETCH_SIZE;
+    }
+
+    /**
+     * Sets the number of rows fetched from the database at a time.
+     * By default, rows are streamed from MySQL (see {@link #STREAMING_FETCH_SIZE})
+     * and fetched 1000 at a time from anything else.
+     *
+     * @param fetchSize the fetch size hint
+     *
+     * @return This loader.
+     */
+    public JdbcRawDataLoader withFetchSize(int fetchSize)
+    {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Sets whether the tables are held by column rather than by row.
+     *
+     * @param columnar whether to use {@link ColumnarRawTable}
+     *
+     * @return This loader.
+     */
+    public JdbcRawDataLoader withColumnar(boolean columnar)
+    {
+        this.columnar = columnar;
+        return this;
+    }
+
+    /**
+     * Sets the deduplicator the loaded values are passed through.
+     *
+     * @param deduplicator the deduplicator to use (null for none)
+     *
+     * @return This loader.
+     */
+    public JdbcRawDataLoader withDeduplicator(StringDeduplicator deduplicator)
+    {
+        this.deduplicator = deduplicator;
+        return this;
+    }
+
+    /**
+     * Loads the selected tables from the database.
+     *
+     * @param selection the tables to load
+     *
+     * @return A map of table name to table.
+     */
+    public Map<String, RawTable> loadData(TableSelection selection)
+    {
+        RawDataLoader.TableCollector collector = new RawDataLoader.TableCollector(columnar);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<TableQuery> queries = findTables(selection);
+
+            List<Callable<Void>> tasks = queries
+                    .stream()
+                    .map(query -> (Callable<Void>)() -> {
+                        readTable(query, collector);
+                        return null;
+                    })
+                    .collect(toList());
+
+            for (Future<Void> result : pool.invokeAll(tasks))
+            {
+                result.get();
+            }
+        }
+        catch (SQLException | ExecutionException e)
+        {
+            throw new IllegalArgumentException("Unable to load data from: " + url, e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading data from: " + url, e);
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        return collector.getTables();
+    }
+
+    /**
+     * Reads the selected tables from the database one at a time, in name
+     * order, passing each row to the given handler as it is read.
+     *
+     * @param selection the tables to read
+     * @param handler the handler to pass each row to
+     */
+    public void streamData(TableSelection selection, RawRowHandler handler)
+    {
+        try
+        {
+            List<TableQuery> queries = findTables(selection);
+            queries.sort(Comparator.comparing(query -> query.tableName));
+            for (TableQuery query : queries)
+            {
+                readTable(query, handler);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalArgumentException("Unable to load data from: " + url, e);
+        }
+    }
+
+    /*
+     * Works out the query for each selected table, from the database's own
+     * description of its tables and columns.
+     */
+    private List<TableQuery> findTables(TableSelection selection)
+        throws SQLException
+    {
+        List<TableQuery> queries = new ArrayList<>();
+
+        try (Connection connection = DriverManager.getConnection(url, properties))
+        {
+            DatabaseMetaData metaData = connection.getMetaData();
+            String quote = metaData.getIdentifierQuoteString().trim();
+            String catalog = connection.getCatalog();
+            String escape = metaData.getSearchStringEscape();
+
+            List<String> tableNames = new ArrayList<>();
+            try (ResultSet tables = metaData.getTables(catalog, null, "%", null))
+            {
+                while (tables.next())
+                {
+                    String tableName = tables.getString("TABLE_NAME");
+                    if (selection.isSelected(tableName) && !tableNames.contains(tableName))
+                    {
+                        tableNames.add(tableName);
+                    }
+                }
+            }
+
+            for (String tableName : tableNames)
+            {
+                Predicate<String> projection = selection.getProjection(tableName);
+                List<String> columns = new ArrayList<>();
+                String pattern = tableName.replace("_", escape + "_").replace("%", escape + "%");
+                try (ResultSet rs = metaData.getColumns(catalog, null, pattern, "%"))
+                {
+                    while (rs.next())
+                    {
+                        String column = rs.getString("COLUMN_NAME");
+                        if (tableName.equals(rs.getString("TABLE_NAME")) && projection.test(column))
+                        {
+                            columns.add(column);
+                        }
+                    }
+                }
+                if (!columns.isEmpty())
+                {
+                    queries.add(new TableQuery(catalog, tableName, columns, quote));
+                }
+            }
+        }
+
+        return queries;
+    }
+
+    private void readTable(TableQuery query, RawRowHandler handler)
+        throws SQLException
+    {
+        int columnCount = query.columns.size();
+        List<StringDeduplicator.ColumnDeduplicator> deduplicators = new ArrayList<>();
+        if (deduplicator != null)
+        {
+            query.columns.forEach(column -> deduplicators.add(deduplicator.forColumn(query.tableName, column)));
+        }
+
+        try (Connection connection = DriverManager.getConnection(url, properties))
+        {
+            connection.setReadOnly(true);
+            try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+            {
+                statement.setFetchSize(fetchSize);
+                handler.startTable(query.database, query.tableName);
+                try (ResultSet rs = statement.executeQuery(query.sql))
+                {
+                    while (rs.next())
+                    {
+                        Map<String, String> row = new LinkedHashMap<>();
+                        for (int i = 0; i < columnCount; i++)
+                        {
+                            String value = rs.getString(i + 1);
+                            if (deduplicator != null)
+                            {
+                                value = deduplicators.get(i).deduplicate(value);
+                            }
+                            row.put(query.columns.get(i), value);
+                        }
+                        handler.addRow(query.tableName, row);
+                    }
+                }
+                handler.endTable(query.tableName);
+            }
+        }
+    }
+
+    /**
+     * How to read a single table.
+     */
+    private static class TableQuery
+    {
+        private final String database;
+        private final String tableName;
+        private final List<String> columns;
+        private final String sql;
+
+        TableQuery(String database, String tableName, List<String> columns, String quote)
+        {
+            this.database = database;
+            this.tableName = tableName;
+            this.columns = columns;
+            this.sql = "SELECT " + columns.stream().map(column -> quote + column + quote).collect(joining(", ")) +
+                       " FROM " + quote + tableName + quote;
+        }
+    }
+}
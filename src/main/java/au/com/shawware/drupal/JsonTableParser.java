@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parses a phpMyAdmin JSON export token by token, passing each row
+ * to a handler as soon as it has been read.
+ *
+ * The export is an array of objects, each with a type, name, database
+ * and (for tables) an array of rows. Anything else is skipped, as are
+ * the rows of any table that has not been selected and the values of any
+ * column that has not been projected. Skipped values are never decoded.
+ * Kept values may be deduplicated as they are read.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class JsonTableParser
+{
+    private static final Predicate<String> ALL_COLUMNS = column -> true;
+
+    private final JsonFactory factory;
+    private final TableSelection selection;
+    private final StringDeduplicator deduplicator;
+
+    public JsonTableParser(TableSelection selection)
+    {
+        this(selection, null);
+    }
+
+    /**
+     * Creates a new parser.
+     *
+     * @param selection the tables (and columns) to parse
+     * @param deduplicator the deduplicator to pass the values through (may be null)
+     */
+    public JsonTableParser(TableSelection selection, StringDeduplicator deduplicator)
+    {
+        this.factory = new JsonFactory();
+        this.selection = selection;
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * Parses the given export.
+     *
+     * @param input the export to parse
+     * @param handler the handler to pass the data to
+     *
+     * @throws IOException if the input cannot be read or is not valid
+     */
+    public void parse(InputStream input, RawRowHandler handler)
+        throws IOException
+    {
+        try (JsonParser parser = factory.createParser(input))
+        {
+            if (parser.nextToken() != JsonToken.START_ARRAY)
+            {
+                throw new IOException("Expected an array of tables at: " + parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT)
+            {
+                parseObject(parser, handler);
+            }
+        }
+    }
+
+    /**
+     * Parses a single top-level object from the export, eg. one table.
+     *
+     * @param input the object to parse
+     * @param handler the handler to pass the data to
+     *
+     * @throws IOException if the input cannot be read or is not valid
+     */
+    public void parseObject(InputStream input, RawRowHandler handler)
+        throws IOException
+    {
+        try (JsonParser parser = factory.createParser(input))
+        {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+            {
+                throw new IOException("Expected a table at: " + parser.getCurrentLocation());
+            }
+            parseObject(parser, handler);
+        }
+    }
+
+    /*
+     * Parses a single top-level object. phpMyAdmin emits the name before
+     * the data, so unwanted tables are skipped without building any rows.
+     * We cope with the other order by holding on to the rows until we know
+     * which table they belong to.
+     */
+    private void parseObject(JsonParser parser, RawRowHandler handler)
+        throws IOException
+    {
+        String database = null;
+        String tableName = null;
+        List<Map<String, String>> pending = null;
+        boolean found = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("database".equals(field))
+            {
+                database = parser.getValueAsString();
+            }
+            else if ("name".equals(field))
+            {
+                tableName = parser.getValueAsString();
+            }
+            else if ("data".equals(field))
+            {
+                found = true;
+                if (tableName != null)
+                {
+                    if (selection.isSelected(tableName))
+                    {
+                        handler.startTable(database, tableName);
+                        parseRows(parser, tableName, selection.getProjection(tableName), handler);
+                    }
+                    else
+                    {
+                        parser.skipChildren();
+                    }
+                }
+                else
+                {
+                    List<Map<String, String>> rows = new ArrayList<>();
+                    parseRows(parser, null, ALL_COLUMNS, (name, row) -> rows.add(row));
+                    pending = rows;
+                }
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+
+        if (!found)
+        {
+            return; // Header, database, etc.
+        }
+        if (tableName == null)
+        {
+            throw new IOException("Table data found without a name at: " + parser.getCurrentLocation());
+        }
+        if (!selection.isSelected(tableName))
+        {
+            return;
+        }
+        if (pending != null)
+        {
+            final String name = tableName;
+            Predicate<String> projection = selection.getProjection(name);
+            handler.startTable(database, name);
+            pending.forEach(row -> {
+                row.keySet().removeIf(column -> !projection.test(column));
+                handler.addRow(name, row);
+            });
+        }
+        handler.endTable(tableName);
+    }
+
+    private void parseRows(JsonParser parser, String tableName, Predicate<String> projection, RawRowHandler handler)
+        throws IOException
+    {
+        if (parser.currentToken() != JsonToken.START_ARRAY)
+        {
+            parser.skipChildren();
+            return;
+        }
+        Map<String, StringDeduplicator.ColumnDeduplicator> columnDeduplicators = new HashMap<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT)
+        {
+            Map<String, String> row = new LinkedHashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String column = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (!projection.test(column))
+                {
+                    parser.skipChildren();
+                    continue;
+                }
+                String value;
+                if (token.isScalarValue() && (token != JsonToken.VALUE_NULL))
+                {
+                    value = parser.getText();
+                }
+                else
+                {
+                    parser.skipChildren();
+                    value = null;
+                }
+                if ((deduplicator != null) && (tableName != null))
+                {
+                    value = columnDeduplicators
+                            .computeIfAbsent(column, name -> deduplicator.forColumn(tableName, name))
+                            .deduplicate(value);
+                }
+                row.put(column, value);
+            }
+            handler.addRow(tableName, row);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The raw data from a JSON export, with each table only parsed when
+ * it is first asked for.
+ *
+ * An index of where each table lives in the export is built up front.
+ * Tables that are no longer needed can be released, after which they
+ * will be parsed again if they are asked for again. Safe to use from
+ * several threads at once.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class LazyRawData extends AbstractMap<String, RawTable> implements Closeable
+{
+    private final Path path;
+    private final FileChannel channel;
+    private final JsonTableParser parser;
+    private final boolean columnar;
+    private final Map<String, ExportIndex.Segment> segments;
+    private final Map<String, RawTable> loaded;
+
+    /*package*/ LazyRawData(Path path, FileChannel channel, ExportIndex index, JsonTableParser parser, TableSelection selection, boolean columnar)
+    {
+        this.path = path;
+        this.channel = channel;
+        this.parser = parser;
+        this.columnar = columnar;
+        this.segments = new LinkedHashMap<>();
+        this.loaded = new ConcurrentHashMap<>();
+
+        index.getSegments()
+            .stream()
+            .filter(segment -> selection.isSelected(segment.getTableName()))
+            .forEach(segment -> segments.put(segment.getTableName(), segment));
+    }
+
+    @Override
+    public RawTable get(Object tableName)
+    {
+        ExportIndex.Segment segment = segments.get(tableName);
+        if (segment == null)
+        {
+            return null;
+        }
+
+        RawTable table = loaded.get(tableName);
+        if (table == null)
+        {
+            // Only one thread should parse a given table.
+            synchronized (segment)
+            {
+                table = loaded.get(tableName);
+                if (table == null)
+                {
+                    table = parse(segment);
+                    if (table != null) // Null if it has no data
+                    {
+                        loaded.put(segment.getTableName(), table);
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public boolean containsKey(Object tableName)
+    {
+        return segments.containsKey(tableName);
+    }
+
+    @Override
+    public int size()
+    {
+        return segments.size();
+    }
+
+    /**
+     * Discards the given table's data. The table is still in the export,
+     * so it will be parsed again if it is asked for again.
+     *
+     * @param tableName the table to release
+     */
+    public void release(String tableName)
+    {
+        loaded.remove(tableName);
+    }
+
+    /**
+     * @return The number of tables currently parsed and held.
+     */
+    public int getLoadedCount()
+    {
+        return loaded.size();
+    }
+
+    @Override
+    public Set<Entry<String, RawTable>> entrySet()
+    {
+        return new AbstractSet<Entry<String, RawTable>>()
+        {
+            @Override
+            public Iterator<Entry<String, RawTable>> iterator()
+            {
+                Iterator<String> tableNames = segments.keySet().iterator();
+                return new Iterator<Entry<String, RawTable>>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return tableNames.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, RawTable> next()
+                    {
+                        String tableName = tableNames.next();
+                        return new SimpleImmutableEntry<>(tableName, get(tableName));
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return segments.size();
+            }
+        };
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        loaded.clear();
+        channel.close();
+    }
+
+    private RawTable parse(ExportIndex.Segment segment)
+    {
+        RawDataLoader.TableCollector collector = new RawDataLoader.TableCollector(columnar);
+        try
+        {
+            parser.parseObject(new MappedInputStream(channel, segment.getStart(), segment.getEnd()), collector);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to load " + segment.getTableName() + " from: " + path, e);
+        }
+        return collector.getTables().get(segment.getTableName());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads a region of a file through memory mappings. The region is mapped
+ * a window at a time, so it may be larger than a single mapping allows.
+ * Several streams may safely share the one channel.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class MappedInputStream extends InputStream
+{
+    private static final long WINDOW = 1L << 30;
+
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Creates a stream over the given region of the file.
+     *
+     * @param channel the file to read
+     * @param start the offset of the first byte to read
+     * @param end the offset just after the last byte to read
+     */
+    public MappedInputStream(FileChannel channel, long start, long end)
+    {
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        if (!ensureMapped())
+        {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+        if (!ensureMapped())
+        {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return (buffer == null) ? 0 : buffer.remaining();
+    }
+
+    @Override
+    public void close()
+    {
+        buffer = null; // The channel belongs to the caller.
+    }
+
+    private boolean ensureMapped()
+        throws IOException
+    {
+        if ((buffer != null) && buffer.hasRemaining())
+        {
+            return true;
+        }
+        if (position >= end)
+        {
+            return false;
+        }
+        long size = Math.min(WINDOW, end - position);
+        buffer = channel.map(MapMode.READ_ONLY, position, size);
+        position += size;
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import au.com.shawware.drupal.MigrationManifest.Entry;
+import au.com.shawware.drupal.MigrationManifest.Kind;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * The differences between two migration runs: the entities that are new
+ * or have changed, and those that have gone. Entities are identified by
+ * their new IDs, as that is how the output refers to them.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class MigrationDelta
+{
+    private final Map<Kind, Set<String>> updated;
+    private final Map<Kind, Set<String>> deleted;
+
+    private MigrationDelta()
+    {
+        this.updated = new EnumMap<>(Kind.class);
+        this.deleted = new EnumMap<>(Kind.class);
+    }
+
+    /**
+     * Works out what has changed between two runs.
+     *
+     * @param previous the previous run's manifest
+     * @param current this run's manifest (with its new IDs)
+     *
+     * @return The delta.
+     */
+    public static MigrationDelta between(MigrationManifest previous, MigrationManifest current)
+    {
+        MigrationDelta delta = new MigrationDelta();
+
+        for (Kind kind : Kind.values())
+        {
+            IntKeyedMap<Entry> before = previous.getEntries(kind);
+            IntKeyedMap<Entry> after = current.getEntries(kind);
+
+            Set<String> kindUpdated = new HashSet<>();
+            after.forEach((oldId, entry) -> {
+                Entry old = before.get(oldId);
+                if ((old == null) || !entry.matches(old))
+                {
+                    kindUpdated.add(entry.getNewId());
+                }
+            });
+
+            Set<String> kindDeleted = new HashSet<>();
+            before.forEach((oldId, entry) -> {
+                if (!after.containsKey(oldId))
+                {
+                    kindDeleted.add(entry.getNewId());
+                }
+            });
+
+            delta.updated.put(kind, kindUpdated);
+            delta.deleted.put(kind, kindDeleted);
+        }
+
+        return delta;
+    }
+
+    /**
+     * @param kind the kind of entity
+     *
+     * @return The new IDs of the entities of the given kind that are new or have changed.
+     */
+    public Set<String> getUpdated(Kind kind)
+    {
+        return updated.get(kind);
+    }
+
+    /**
+     * @param kind the kind of entity
+     *
+     * @return The new IDs of the entities of the given kind that have gone.
+     */
+    public Set<String> getDeleted(Kind kind)
+    {
+        return deleted.get(kind);
+    }
+
+    /**
+     * Reduces the given (renumbered) data to what has been updated.
+     * Files are also kept if an updated image node uses them.
+     *
+     * @param nodes the nodes
+     * @param tags the tags
+     * @param aliases the aliases
+     * @param files the files
+     * @param imageMap the map of (image) node ID to file ID
+     * @param values the field values
+     */
+    public void retainUpdated(
+            Map<String, Node> nodes,
+            Map<String, Tag> tags,
+            Map<String, Alias> aliases,
+            Map<String, File> files,
+            Map<String, String> imageMap,
+            Map<String, List<FieldValue>> values
+    ) {
+        Set<String> nids = updated.get(Kind.NODE);
+
+        retain(nodes, nids);
+        retain(tags, updated.get(Kind.TAG));
+        retain(aliases, updated.get(Kind.ALIAS));
+        retain(imageMap, nids);
+
+        Set<String> fids = new HashSet<>(updated.get(Kind.FILE));
+        fids.addAll(imageMap.values());
+        retain(files, fids);
+
+        values.replaceAll((field, fieldValues) -> fieldValues.stream()
+                .filter(value -> nids.contains(value.getId()))
+                .collect(toList())
+            );
+    }
+
+    /*
+     * Removes the entries one at a time, as not every map's key set
+     * supports removal.
+     */
+    private static void retain(Map<String, ?> map, Set<String> ids)
+    {
+        map.keySet()
+            .stream()
+            .filter(id -> !ids.contains(id))
+            .collect(toList())
+            .forEach(map::remove);
+    }
+
+    /**
+     * @return A summary of the delta, by kind of entity.
+     */
+    public String getSummary()
+    {
+        StringBuilder summary = new StringBuilder("Delta:");
+        for (Kind kind : Kind.values())
+        {
+            summary.append(String.format("%n    %s: %d updated, %d deleted", kind, updated.get(kind).size(), deleted.get(kind).size()));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Records what a migration run produced, so that the next run can
+ * migrate just what has changed since.
+ *
+ * For each entity (node, tag, alias and file), the manifest holds its old
+ * (D7) ID, the new ID it was given, its changed time (if it has one) and
+ * a hash of its content. The new IDs are reused by later runs, so that
+ * their output applies cleanly to the database the earlier runs populated.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class MigrationManifest
+{
+    private static final long MAGIC = 0x445255504C4D4E46L; // "DRUPLMNF"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int NO_ID = -1;
+
+    /**
+     * The kinds of entity recorded.
+     */
+    public enum Kind
+    {
+        NODE, TAG, ALIAS, FILE
+    }
+
+    private final Map<Kind, IntKeyedMap<Entry>> entries;
+    private final Map<Kind, Integer> nextIds;
+
+    private MigrationManifest()
+    {
+        this.entries = new EnumMap<>(Kind.class);
+        this.nextIds = new EnumMap<>(Kind.class);
+        for (Kind kind : Kind.values())
+        {
+            entries.put(kind, new IntKeyedMap<>());
+            nextIds.put(kind, 0);
+        }
+    }
+
+    /**
+     * Describes the given (not yet renumbered) entities. Their new IDs are
+     * added once they have been renumbered.
+     *
+     * @param nodes the nodes
+     * @param tags the tags
+     * @param aliases the aliases
+     * @param files the files
+     *
+     * @return The manifest.
+     */
+    public static MigrationManifest describe(
+            Map<String, Node> nodes,
+            Map<String, Tag> tags,
+            Map<String, Alias> aliases,
+            Map<String, File> files
+    ) {
+        MigrationManifest manifest = new MigrationManifest();
+        Hasher hasher = new Hasher();
+
+        nodes.forEach((nid, node) -> manifest.add(Kind.NODE, nid, node.getChanged(), hasher.hash(node)));
+        tags.forEach((tid, tag) -> manifest.add(Kind.TAG, tid, null, hasher.hash(tag.getName(), tag.getDescription())));
+        aliases.forEach((id, alias) -> manifest.add(Kind.ALIAS, id, null, hasher.hash(alias.getPath(), alias.getAlias())));
+        files.forEach((fid, file) -> manifest.add(Kind.FILE, fid, null, hasher.hash(file.getUid(), file.getPath(), file.getMimeType(), file.getSize())));
+
+        return manifest;
+    }
+
+    private void add(Kind kind, String oldId, String changed, long hash)
+    {
+        entries.get(kind).put(oldId, new Entry(NO_ID, changed, hash));
+    }
+
+    /**
+     * Records the new IDs given to entities of the given kind. IDs handed
+     * out by the previous run are never handed out again, even if their
+     * entities have since gone.
+     *
+     * @param kind the kind of entity
+     * @param ids the map of old IDs to new ones
+     * @param previous the previous run's manifest (if any)
+     */
+    public void setIds(Kind kind, Map<String, String> ids, MigrationManifest previous)
+    {
+        int nextId = (previous == null) ? 0 : previous.getNextId(kind);
+        IntKeyedMap<Entry> kindEntries = entries.get(kind);
+        for (Map.Entry<String, String> id : ids.entrySet())
+        {
+            Entry entry = kindEntries.get(id.getKey());
+            if (entry != null)
+            {
+                entry.newId = Integer.parseInt(id.getValue());
+                nextId = Math.max(nextId, entry.newId + 1);
+            }
+        }
+        nextIds.put(kind, nextId);
+    }
+
+    /**
+     * @param kind the kind of entity
+     *
+     * @return The map of old IDs to new ones for the given kind of entity.
+     */
+    public Map<String, String> getIdMap(Kind kind)
+    {
+        IntKeyedMap<Entry> kindEntries = entries.get(kind);
+        IntKeyedMap<String> ids = new IntKeyedMap<>(kindEntries.size());
+        for (int oldId : kindEntries.sortedKeys())
+        {
+            Entry entry = kindEntries.get(oldId);
+            if (entry.newId != NO_ID)
+            {
+                ids.put(oldId, String.valueOf(entry.newId));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param kind the kind of entity
+     *
+     * @return The lowest new ID not yet handed out for the given kind of entity.
+     */
+    public int getNextId(Kind kind)
+    {
+        return nextIds.get(kind);
+    }
+
+    /*package*/ IntKeyedMap<Entry> getEntries(Kind kind)
+    {
+        return entries.get(kind);
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @param file where the manifest is kept
+     *
+     * @return The manifest, or empty if there is none (or it is unusable).
+     */
+    public static Optional<MigrationManifest> read(Path file)
+    {
+        if (!Files.isRegularFile(file))
+        {
+            return Optional.empty();
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)))
+        {
+            if ((input.readLong() != MAGIC) || (input.readInt() != VERSION))
+            {
+                return Optional.empty();
+            }
+
+            MigrationManifest manifest = new MigrationManifest();
+            for (Kind kind : Kind.values())
+            {
+                manifest.nextIds.put(kind, input.readInt());
+                int count = input.readInt();
+                IntKeyedMap<Entry> kindEntries = new IntKeyedMap<>(count);
+                for (int i = 0; i < count; i++)
+                {
+                    int oldId = input.readInt();
+                    int newId = input.readInt();
+                    String changed = input.readBoolean() ? input.readUTF() : null;
+                    kindEntries.put(oldId, new Entry(newId, changed, input.readLong()));
+                }
+                manifest.entries.put(kind, kindEntries);
+            }
+            return Optional.of(manifest);
+        }
+        catch (EOFException e)
+        {
+            return Optional.empty(); // Incomplete, so ignore it.
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to read manifest: " + file, e);
+        }
+    }
+
+    /**
+     * Writes this manifest, replacing any existing one. The manifest is
+     * written alongside and then moved into place, so a partial manifest
+     * is never read.
+     *
+     * @param file where the manifest is kept
+     */
+    public void write(Path file)
+    {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try
+        {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE)))
+            {
+                output.writeLong(MAGIC);
+                output.writeInt(VERSION);
+                for (Kind kind : Kind.values())
+                {
+                    IntKeyedMap<Entry> kindEntries = entries.get(kind);
+                    output.writeInt(nextIds.get(kind));
+                    output.writeInt(kindEntries.size());
+                    for (int oldId : kindEntries.sortedKeys())
+                    {
+                        Entry entry = kindEntries.get(oldId);
+                        output.writeInt(oldId);
+                        output.writeInt(entry.newId);
+                        output.writeBoolean(entry.changed != null);
+                        if (entry.changed != null)
+                        {
+                            output.writeUTF(entry.changed);
+                        }
+                        output.writeLong(entry.hash);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to write manifest: " + file, e);
+        }
+    }
+
+    /**
+     * What was recorded for a single entity.
+     */
+    /*package*/ static class Entry
+    {
+        private int newId;
+        private final String changed;
+        private final long hash;
+
+        Entry(int newId, String changed, long hash)
+        {
+            this.newId = newId;
+            this.changed = changed;
+            this.hash = hash;
+        }
+
+        /*package*/ String getNewId()
+        {
+            return String.valueOf(newId);
+        }
+
+        /**
+         * @param other the same entity's entry from another run
+         *
+         * @return Whether the entity is unchanged since the other run.
+         */
+        /*package*/ boolean matches(Entry other)
+        {
+            return (hash == other.hash) &&
+                   ((changed == null) ? (other.changed == null) : changed.equals(other.changed));
+        }
+    }
+
+    /**
+     * Hashes entities' content. Only the first 64 bits of the digest are
+     * kept, which is plenty to detect changes to a single entity.
+     */
+    private static class Hasher
+    {
+        private final MessageDigest digest;
+
+        Hasher()
+        {
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException("SHA-256 not supported", e);
+            }
+        }
+
+        long hash(Node node)
+        {
+            List<String> parts = new ArrayList<>();
+            parts.add(node.getType());
+            parts.add(node.getUid());
+            parts.add(node.getCreated());
+            parts.add(node.getTitle());
+            parts.add(node.getSummary().orElse(null));
+            parts.add(node.getBody());
+            parts.add(node.getBodyFormat());
+            parts.add(node.getAlias().orElse(null));
+            parts.add(node.getReads().orElse(null));
+            parts.add(node.getLastRead().orElse(null));
+            parts.add(node.getCommentStatus().orElse(null));
+            parts.add(node.getVid().orElse(null));
+            node.getTags()
+                .stream()
+                .map(Tag::getId)
+                .sorted()
+                .forEach(parts::add);
+            node.getValues()
+                .stream()
+                .sorted(Comparator.comparing((FieldValue value) -> value.getField().getName()).thenComparing(FieldValue::getDelta))
+                .forEach(value -> {
+                    parts.add(value.getField().getName());
+                    parts.add(value.getDelta());
+                    parts.add(value.getValue());
+                    parts.add(new TreeMap<>(value.getExtra()).toString());
+                });
+            return hash(parts.toArray(new String[0]));
+        }
+
+        long hash(String... parts)
+        {
+            for (String part : parts)
+            {
+                if (part == null)
+                {
+                    digest.update((byte)0);
+                }
+                else
+                {
+                    digest.update((byte)1);
+                    digest.update(part.getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte)0xFF); // Keep adjacent parts apart
+            }
+            byte[] bytes = digest.digest();
+            long hash = 0;
+            for (int i = 0; i < Long.BYTES; i++)
+            {
+                hash = (hash << 8) | (bytes[i] & 0xFF);
+            }
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,855 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Reads a plain mysqldump file in a single streaming pass, passing each row
+ * to a handler as soon as it has been read.
+ *
+ * The column names come from each CREATE TABLE statement (or the INSERT's
+ * own column list) and the rows from the (extended) INSERT statements.
+ * Each row is passed on as soon as its closing parenthesis is read, so
+ * memory use does not depend on the size of a statement. All other
+ * statements are skipped, as are the rows of tables that are not selected.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class MySqlDumpReader
+{
+    private static final Set<String> KEY_WORDS = Set.of(
+            "PRIMARY", "KEY", "INDEX", "UNIQUE", "FULLTEXT", "SPATIAL", "CONSTRAINT", "FOREIGN", "CHECK"
+        );
+    private static final Set<String> INSERT_MODIFIERS = Set.of(
+            "LOW_PRIORITY", "DELAYED", "HIGH_PRIORITY", "IGNORE"
+        );
+
+    private final TableSelection selection;
+    private final StringDeduplicator deduplicator;
+
+    /**
+     * Creates a new reader.
+     *
+     * @param selection the tables (and columns) to read
+     * @param deduplicator the deduplicator to pass the values through (may be null)
+     */
+    public MySqlDumpReader(TableSelection selection, StringDeduplicator deduplicator)
+    {
+        this.selection = selection;
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * Reads the given dump.
+     *
+     * @param reader the dump to read
+     * @param handler the handler to pass the data to
+     *
+     * @throws IOException if the input cannot be read or is not valid
+     */
+    public void parse(Reader reader, RawRowHandler handler)
+        throws IOException
+    {
+        new Session(new Tokens(reader), handler).run();
+    }
+
+    /**
+     * The state of a single pass over a dump.
+     */
+    private class Session
+    {
+        private final Tokens tokens;
+        private final RawRowHandler handler;
+        private final Map<String, List<String>> tableColumns;
+        private final Set<String> finished;
+        private String database;
+        private String currentTable;
+
+        Session(Tokens tokens, RawRowHandler handler)
+        {
+            this.tokens = tokens;
+            this.handler = handler;
+            this.tableColumns = new HashMap<>();
+            this.finished = new HashSet<>();
+        }
+
+        void run()
+            throws IOException
+        {
+            while (true)
+            {
+                tokens.skipSpace();
+                int c = tokens.peek();
+                if (c < 0)
+                {
+                    break;
+                }
+                if (c == ';')
+                {
+                    tokens.next();
+                    continue;
+                }
+                String word = tokens.readWord().toUpperCase();
+                if ("CREATE".equals(word))
+                {
+                    parseCreate();
+                }
+                else if ("INSERT".equals(word) || "REPLACE".equals(word))
+                {
+                    parseInsert();
+                }
+                else if ("USE".equals(word))
+                {
+                    database = tokens.readName();
+                    tokens.skipStatement();
+                }
+                else
+                {
+                    tokens.skipStatement();
+                }
+            }
+            endTable();
+        }
+
+        private void parseCreate()
+            throws IOException
+        {
+            if (!"TABLE".equalsIgnoreCase(tokens.readWord()))
+            {
+                tokens.skipStatement(); // Views, triggers, etc.
+                return;
+            }
+            if (tokens.peekWord("IF"))
+            {
+                tokens.readWord(); // IF
+                tokens.readWord(); // NOT
+                tokens.readWord(); // EXISTS
+            }
+            String tableName = tokens.readName();
+            tokens.expect('(');
+
+            List<String> columns = new ArrayList<>();
+            while (true)
+            {
+                tokens.skipSpace();
+                int c = tokens.peek();
+                if (c == ')')
+                {
+                    break;
+                }
+                if (c == '`')
+                {
+                    columns.add(tokens.readQuoted());
+                }
+                else
+                {
+                    String word = tokens.readWord();
+                    if (!word.isEmpty() && !KEY_WORDS.contains(word.toUpperCase()))
+                    {
+                        columns.add(word);
+                    }
+                }
+                if (tokens.skipDefinition() == ')')
+                {
+                    break;
+                }
+            }
+            tokens.skipStatement(); // Table options
+
+            tableColumns.put(tableName, columns);
+            if (selection.isSelected(tableName))
+            {
+                startTable(tableName);
+            }
+        }
+
+        private void parseInsert()
+            throws IOException
+        {
+            String word = tokens.readWord();
+            while (INSERT_MODIFIERS.contains(word.toUpperCase()))
+            {
+                word = tokens.readWord();
+            }
+            String tableName;
+            if ("INTO".equalsIgnoreCase(word) || word.isEmpty())
+            {
+                tableName = tokens.readName();
+            }
+            else
+            {
+                tableName = tokens.readName(word); // REPLACE without INTO
+            }
+
+            if (!selection.isSelected(tableName))
+            {
+                tokens.skipStatement();
+                return;
+            }
+
+            List<String> columns;
+            tokens.skipSpace();
+            if (tokens.peek() == '(')
+            {
+                columns = readColumnList();
+            }
+            else
+            {
+                columns = tableColumns.get(tableName);
+                if (columns == null)
+                {
+                    throw new IOException("Rows found for table " + tableName + " with no columns, at line: " + tokens.getLine());
+                }
+            }
+            word = tokens.readWord().toUpperCase();
+            if (!"VALUES".equals(word) && !"VALUE".equals(word))
+            {
+                tokens.skipStatement(); // INSERT ... SELECT or SET
+                return;
+            }
+
+            startTable(tableName);
+            RowBuilder builder = new RowBuilder(tableName, columns);
+            while (true)
+            {
+                tokens.expect('(');
+                builder.reset();
+                while (true)
+                {
+                    if (builder.isProjected())
+                    {
+                        builder.add(readValue());
+                    }
+                    else
+                    {
+                        skipValue();
+                        builder.skip();
+                    }
+                    tokens.skipSpace();
+                    int c = tokens.next();
+                    if (c == ')')
+                    {
+                        break;
+                    }
+                    if (c != ',')
+                    {
+                        throw new IOException("Expected , or ) in row of " + tableName + " at line: " + tokens.getLine());
+                    }
+                }
+                handler.addRow(tableName, builder.build(tokens.getLine()));
+                tokens.skipSpace();
+                if (tokens.peek() != ',')
+                {
+                    break;
+                }
+                tokens.next();
+            }
+            tokens.skipStatement(); // ON DUPLICATE KEY UPDATE, etc.
+        }
+
+        private List<String> readColumnList()
+            throws IOException
+        {
+            List<String> columns = new ArrayList<>();
+            tokens.expect('(');
+            while (true)
+            {
+                tokens.skipSpace();
+                columns.add((tokens.peek() == '`') ? tokens.readQuoted() : tokens.readWord());
+                tokens.skipSpace();
+                int c = tokens.next();
+                if (c == ')')
+                {
+                    break;
+                }
+                if (c != ',')
+                {
+                    throw new IOException("Expected , or ) in column list at line: " + tokens.getLine());
+                }
+            }
+            return columns;
+        }
+
+        private String readValue()
+            throws IOException
+        {
+            tokens.skipSpace();
+            int c = tokens.peek();
+            if ((c == '\'') || (c == '"'))
+            {
+                return tokens.readString();
+            }
+            String token = tokens.readBareValue();
+            if (token.startsWith("_"))
+            {
+                // A character set introducer, eg. _binary 'xyz'
+                tokens.skipSpace();
+                c = tokens.peek();
+                if ((c == '\'') || (c == '"'))
+                {
+                    return tokens.readString();
+                }
+            }
+            return "NULL".equalsIgnoreCase(token) ? null : token;
+        }
+
+        /*
+         * Skips a value that is not kept, without decoding it.
+         */
+        private void skipValue()
+            throws IOException
+        {
+            tokens.skipSpace();
+            int c = tokens.peek();
+            if ((c == '\'') || (c == '"'))
+            {
+                tokens.skipString();
+                return;
+            }
+            tokens.skipBareValue();
+            if (c == '_')
+            {
+                // A character set introducer, eg. _binary 'xyz'
+                tokens.skipSpace();
+                c = tokens.peek();
+                if ((c == '\'') || (c == '"'))
+                {
+                    tokens.skipString();
+                }
+            }
+        }
+
+        private void startTable(String tableName)
+            throws IOException
+        {
+            if (tableName.equals(currentTable))
+            {
+                return;
+            }
+            endTable();
+            if (!finished.add(tableName))
+            {
+                throw new IOException("Rows for table " + tableName + " are not together, at line: " + tokens.getLine());
+            }
+            handler.startTable(database, tableName);
+            currentTable = tableName;
+        }
+
+        private void endTable()
+        {
+            if (currentTable != null)
+            {
+                handler.endTable(currentTable);
+                currentTable = null;
+            }
+        }
+    }
+
+    /**
+     * Builds each row of an INSERT statement, applying the projection.
+     */
+    private class RowBuilder
+    {
+        private final String tableName;
+        private final List<String> columns;
+        private final boolean[] projected;
+        private final StringDeduplicator.ColumnDeduplicator[] deduplicators;
+        private Map<String, String> row;
+        private int column;
+
+        RowBuilder(String tableName, List<String> columns)
+        {
+            this.tableName = tableName;
+            this.columns = columns;
+            this.projected = new boolean[columns.size()];
+            this.deduplicators = new StringDeduplicator.ColumnDeduplicator[columns.size()];
+
+            Predicate<String> projection = selection.getProjection(tableName);
+            for (int i = 0; i < projected.length; i++)
+            {
+                projected[i] = projection.test(columns.get(i));
+                if (deduplicator != null)
+                {
+                    deduplicators[i] = deduplicator.forColumn(tableName, columns.get(i));
+                }
+            }
+        }
+
+        void reset()
+        {
+            row = new LinkedHashMap<>();
+            column = 0;
+        }
+
+        /*
+         * Whether the next value is kept.
+         */
+        boolean isProjected()
+        {
+            return (column < columns.size()) && projected[column];
+        }
+
+        void skip()
+            throws IOException
+        {
+            if (column >= columns.size())
+            {
+                throw new IOException("Too many values in row of " + tableName);
+            }
+            column++;
+        }
+
+        void add(String value)
+            throws IOException
+        {
+            if (column >= columns.size())
+            {
+                throw new IOException("Too many values in row of " + tableName);
+            }
+            if (projected[column])
+            {
+                if (deduplicator != null)
+                {
+                    value = deduplicators[column].deduplicate(value);
+                }
+                row.put(columns.get(column), value);
+            }
+            column++;
+        }
+
+        Map<String, String> build(int line)
+            throws IOException
+        {
+            if (column != columns.size())
+            {
+                throw new IOException("Expected " + columns.size() + " values in row of " + tableName + " but found " + column + " at line: " + line);
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Reads the lexical elements of a dump, one character at a time.
+     */
+    private static class Tokens
+    {
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final Reader reader;
+        private final char[] buffer;
+        private int position;
+        private int limit;
+        private int line;
+
+        Tokens(Reader reader)
+        {
+            this.reader = reader;
+            this.buffer = new char[BUFFER_SIZE];
+            this.position = 0;
+            this.limit = 0;
+            this.line = 1;
+        }
+
+        int getLine()
+        {
+            return line;
+        }
+
+        int peek()
+            throws IOException
+        {
+            return ensure(1) ? buffer[position] : -1;
+        }
+
+        private int peek(int offset)
+            throws IOException
+        {
+            return ensure(offset + 1) ? buffer[position + offset] : -1;
+        }
+
+        int next()
+            throws IOException
+        {
+            if (!ensure(1))
+            {
+                return -1;
+            }
+            char c = buffer[position++];
+            if (c == '\n')
+            {
+                line++;
+            }
+            return c;
+        }
+
+        void expect(char expected)
+            throws IOException
+        {
+            skipSpace();
+            int c = next();
+            if (c != expected)
+            {
+                throw new IOException("Expected " + expected + " but found " + (c < 0 ? "end of input" : String.valueOf((char)c)) + " at line: " + line);
+            }
+        }
+
+        /*
+         * Skips whitespace and comments. Conditional comments (eg. /*!40101 ... * /)
+         * only hold session settings, so are skipped too.
+         */
+        void skipSpace()
+            throws IOException
+        {
+            while (true)
+            {
+                int c = peek();
+                if ((c == ' ') || (c == '\t') || (c == '\r') || (c == '\n'))
+                {
+                    next();
+                }
+                else if (c == '#' || ((c == '-') && (peek(1) == '-') && isSpaceOrEnd(peek(2))))
+                {
+                    skipLine();
+                }
+                else if ((c == '/') && (peek(1) == '*'))
+                {
+                    next();
+                    next();
+                    while ((c = next()) >= 0)
+                    {
+                        if ((c == '*') && (peek() == '/'))
+                        {
+                            next();
+                            break;
+                        }
+                    }
+                }
+                else
+                {
+                    return;
+                }
+            }
+        }
+
+        boolean peekWord(String word)
+            throws IOException
+        {
+            skipSpace();
+            for (int i = 0; i < word.length(); i++)
+            {
+                int c = peek(i);
+                if ((c < 0) || (Character.toUpperCase((char)c) != word.charAt(i)))
+                {
+                    return false;
+                }
+            }
+            return !isWordChar(peek(word.length()));
+        }
+
+        String readWord()
+            throws IOException
+        {
+            skipSpace();
+            StringBuilder word = new StringBuilder();
+            while (isWordChar(peek()))
+            {
+                word.append((char)next());
+            }
+            return word.toString();
+        }
+
+        /*
+         * Reads a possibly qualified name, eg. `db`.`table`, returning the last part.
+         */
+        String readName()
+            throws IOException
+        {
+            skipSpace();
+            return readName((peek() == '`') ? readQuoted() : readWord());
+        }
+
+        String readName(String first)
+            throws IOException
+        {
+            String name = first;
+            while (peek() == '.')
+            {
+                next();
+                name = (peek() == '`') ? readQuoted() : readWord();
+            }
+            return name;
+        }
+
+        /*
+         * Reads a `quoted` identifier. Doubled backquotes stand for one.
+         */
+        String readQuoted()
+            throws IOException
+        {
+            next(); // Opening `
+            StringBuilder name = new StringBuilder();
+            int c;
+            while ((c = next()) >= 0)
+            {
+                if (c == '`')
+                {
+                    if (peek() != '`')
+                    {
+                        break;
+                    }
+                    next();
+                }
+                name.append((char)c);
+            }
+            return name.toString();
+        }
+
+        /*
+         * Reads a quoted string literal, handling MySQL's escape sequences
+         * and doubled quotes. As MySQL does, \% and \_ keep their backslash.
+         */
+        String readString()
+            throws IOException
+        {
+            int quote = next();
+            StringBuilder value = new StringBuilder();
+            int c;
+            while ((c = next()) >= 0)
+            {
+                if (c == quote)
+                {
+                    if (peek() != quote)
+                    {
+                        return value.toString();
+                    }
+                    next();
+                    value.append((char)c);
+                }
+                else if (c == '\\')
+                {
+                    c = next();
+                    switch (c)
+                    {
+                        case '0': value.append('\0'); break;
+                        case 'b': value.append('\b'); break;
+                        case 'n': value.append('\n'); break;
+                        case 'r': value.append('\r'); break;
+                        case 't': value.append('\t'); break;
+                        case 'Z': value.append('\u001A'); break;
+                        case '%': value.append("\\%"); break;
+                        case '_': value.append("\\_"); break;
+                        case -1: throw new IOException("Unterminated string at line: " + line);
+                        default: value.append((char)c); break;
+                    }
+                }
+                else
+                {
+                    value.append((char)c);
+                }
+            }
+            throw new IOException("Unterminated string at line: " + line);
+        }
+
+        /*
+         * Skips a quoted string literal or identifier without decoding it,
+         * so that statements for unselected tables cost no allocation.
+         * Only the end matters, so an escape just skips the next character.
+         */
+        void skipString()
+            throws IOException
+        {
+            int quote = next();
+            int c;
+            while ((c = next()) >= 0)
+            {
+                if (c == quote)
+                {
+                    if (peek() != quote)
+                    {
+                        return;
+                    }
+                    next();
+                }
+                else if ((c == '\\') && (quote != '`'))
+                {
+                    if (next() < 0)
+                    {
+                        break;
+                    }
+                }
+            }
+            throw new IOException("Unterminated string at line: " + line);
+        }
+
+        /*
+         * Reads an unquoted value, eg. NULL, a number or a hex literal.
+         */
+        String readBareValue()
+            throws IOException
+        {
+            StringBuilder value = new StringBuilder();
+            int c;
+            while (((c = peek()) >= 0) && (c != ',') && (c != ')') && !isSpaceOrEnd(c))
+            {
+                if ((c == '\'') || (c == '"'))
+                {
+                    value.append((char)c).append(readString()).append((char)c); // eg. X'1F'
+                }
+                else
+                {
+                    value.append((char)next());
+                }
+            }
+            return value.toString();
+        }
+
+        void skipBareValue()
+            throws IOException
+        {
+            int c;
+            while (((c = peek()) >= 0) && (c != ',') && (c != ')') && !isSpaceOrEnd(c))
+            {
+                if ((c == '\'') || (c == '"'))
+                {
+                    skipString(); // eg. X'1F'
+                }
+                else
+                {
+                    next();
+                }
+            }
+        }
+
+        /*
+         * Skips the rest of a column or key definition within CREATE TABLE,
+         * returning the , or ) that ends it.
+         */
+        int skipDefinition()
+            throws IOException
+        {
+            int depth = 0;
+            while (true)
+            {
+                skipSpace();
+                int c = peek();
+                if (c < 0)
+                {
+                    throw new IOException("Unterminated CREATE TABLE at line: " + line);
+                }
+                if ((c == '\'') || (c == '"'))
+                {
+                    readString();
+                }
+                else if (c == '`')
+                {
+                    readQuoted();
+                }
+                else
+                {
+                    next();
+                    if (c == '(')
+                    {
+                        depth++;
+                    }
+                    else if ((c == ')') && (depth-- == 0))
+                    {
+                        return c;
+                    }
+                    else if ((c == ',') && (depth == 0))
+                    {
+                        return c;
+                    }
+                }
+            }
+        }
+
+        /*
+         * Skips to the end of the current statement, respecting quotes.
+         */
+        void skipStatement()
+            throws IOException
+        {
+            while (true)
+            {
+                skipSpace();
+                int c = peek();
+                if (c < 0)
+                {
+                    return;
+                }
+                if ((c == '\'') || (c == '"') || (c == '`'))
+                {
+                    skipString();
+                }
+                else
+                {
+                    next();
+                    if (c == ';')
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void skipLine()
+            throws IOException
+        {
+            int c;
+            while (((c = next()) >= 0) && (c != '\n'))
+            {
+                // Skip
+            }
+        }
+
+        private boolean ensure(int count)
+            throws IOException
+        {
+            if (limit - position >= count)
+            {
+                return true;
+            }
+            if (position > 0)
+            {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            while (limit < count)
+            {
+                int read = reader.read(buffer, limit, buffer.length - limit);
+                if (read < 0)
+                {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        private static boolean isWordChar(int c)
+        {
+            return (c >= 0) && (Character.isLetterOrDigit(c) || (c == '_') || (c == '$'));
+        }
+
+        private static boolean isSpaceOrEnd(int c)
+        {
+            return (c < 0) || (c == ' ') || (c == '\t') || (c == '\r') || (c == '\n');
+        }
+    }
+}
@@ -30,6 +30,8 @@ public class Node extends Entity
     private String alias;
     private String reads;
     private String lastRead;
+    private String commentStatus;
+    private String vid;
     private final List<Tag> tags;
     private final List<FieldValue> values;
 
@@ -59,6 +61,8 @@ public class Node extends Entity
         this.bodyFormat = oldNode.bodyFormat;
         this.reads = oldNode.reads;
         this.lastRead = oldNode.lastRead;
+        this.commentStatus = oldNode.commentStatus;
+        this.vid = oldNode.vid;
         this.tags.addAll(oldNode.getTags());
     }
 
@@ -147,6 +151,32 @@ public class Node extends Entity
         this.lastRead = lastRead;
     }
 
+    /**
+     * @return Whether comments are hidden (0), closed (1) or open (2), if known.
+     */
+    public Optional<String> getCommentStatus()
+    {
+        return Optional.ofNullable(commentStatus);
+    }
+
+    public void setCommentStatus(String commentStatus)
+    {
+        this.commentStatus = commentStatus;
+    }
+
+    /**
+     * @return The ID of the node's current revision, if known.
+     */
+    public Optional<String> getVid()
+    {
+        return Optional.ofNullable(vid);
+    }
+
+    public void setVid(String vid)
+    {
+        this.vid = vid;
+    }
+
     public List<Tag> getTags()
     {
         return tags;
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a source stream on a dedicated thread, so that producing the data
+ * (eg. decompressing it) overlaps with consuming it (eg. parsing it).
+ *
+ * The data is passed between the threads in chunks through a bounded queue,
+ * so the reading thread can only get a fixed amount ahead.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class PipelinedInputStream extends InputStream
+{
+    private static final byte[] END = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread reader;
+    private volatile IOException error;
+    private byte[] chunk;
+    private int position;
+
+    /**
+     * Creates a new stream and starts reading the source.
+     *
+     * @param source the stream to read on a separate thread
+     * @param name the name of the reading thread
+     * @param chunkSize the size of each chunk passed between the threads
+     * @param maxChunks the maximum number of chunks read ahead
+     */
+    public PipelinedInputStream(InputStream source, String name, int chunkSize, int maxChunks)
+    {
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<>(maxChunks);
+        this.chunk = null;
+        this.position = 0;
+
+        this.reader = new Thread(() -> fill(chunkSize), name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        if (!ensureChunk())
+        {
+            return -1;
+        }
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+        if (!ensureChunk())
+        {
+            return -1;
+        }
+        int count = Math.min(length, chunk.length - position);
+        System.arraycopy(chunk, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return (chunk == null || chunk == END) ? 0 : chunk.length - position;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        reader.interrupt();
+        source.close();
+    }
+
+    private boolean ensureChunk()
+        throws IOException
+    {
+        if (chunk == END)
+        {
+            return false;
+        }
+        if ((chunk != null) && (position < chunk.length))
+        {
+            return true;
+        }
+        try
+        {
+            chunk = queue.take();
+            position = 0;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        }
+        if (chunk == END)
+        {
+            if (error != null)
+            {
+                throw new IOException("Unable to read source", error);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Runs on the reading thread. Always ends with the END marker,
+     * recording any error first so that the consumer sees it.
+     */
+    private void fill(int chunkSize)
+    {
+        try
+        {
+            byte[] buffer = new byte[chunkSize];
+            while (true)
+            {
+                int count = source.readNBytes(buffer, 0, buffer.length);
+                if (count <= 0)
+                {
+                    break;
+                }
+                queue.put(Arrays.copyOf(buffer, count));
+            }
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        catch (InterruptedException e)
+        {
+            return; // The consumer has closed the stream.
+        }
+        try
+        {
+            queue.put(END);
+        }
+        catch (InterruptedException e)
+        {
+            // The consumer has closed the stream.
+        }
+    }
+}
@@ -7,44 +7,441 @@
 
 package au.com.shawware.drupal;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toList;
 
 /**
  * Loads the raw Drupal data (to be upgraded).
  *
+ * The data may be a phpMyAdmin JSON export or a plain mysqldump file,
+ * either of which may be gzip or xz compressed. The format and compression
+ * are detected from the content, so any of them can be piped in.
+ * The data is read as a stream, so only the tables being kept
+ * (rather than the whole export) need to fit in memory.
+ *
+ * With more than one thread, an uncompressed JSON export is memory-mapped, each table
+ * is located by a byte-level scan and the tables are parsed in parallel.
+ *
+ * Tables can be held by row (as exported) or by column, which takes
+ * much less memory. Repeated values can also share a single instance.
+ * The loaded tables can be kept in a snapshot, which later runs
+ * over the same export load instead of parsing it again.
+ *
  * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
  */
 public class RawDataLoader
 {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int SNIFF_SIZE = 1 << 12;
+
+    private int threads;
+    private boolean columnar;
+    private StringDeduplicator deduplicator;
+    private RawDataSnapshot snapshot;
+
+    public RawDataLoader()
+    {
+        this.threads = 1;
+        this.columnar = false;
+        this.deduplicator = null;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the number of threads used to parse the export.
+     *
+     * @param threads the number of threads (1 to parse serially)
+     *
+     * @return This loader.
+     */
+    public RawDataLoader withThreads(int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets whether the tables are held by column rather than by row.
+     *
+     * @param columnar whether to use {@link ColumnarRawTable}
+     *
+     * @return This loader.
+     */
+    public RawDataLoader withColumnar(boolean columnar)
+    {
+        this.columnar = columnar;
+        return this;
+    }
+
+    /**
+     * Sets the deduplicator the loaded values are passed through.
+     *
+     * @param deduplicator the deduplicator to use (null for none)
+     *
+     * @return This loader.
+     */
+    public RawDataLoader withDeduplicator(StringDeduplicator deduplicator)
+    {
+        this.deduplicator = deduplicator;
+        return this;
+    }
+
+    /**
+     * Sets the snapshot used to skip parsing an export that has been loaded before.
+     * If the snapshot matches the export (and selection) it is loaded instead,
+     * otherwise the export is parsed and the snapshot is rewritten.
+     *
+     * @param snapshot the snapshot to use (null for none)
+     *
+     * @return This loader.
+     */
+    public RawDataLoader withSnapshot(RawDataSnapshot snapshot)
+    {
+        this.snapshot = snapshot;
+        return this;
+    }
+
+    /**
+     * Loads all the tables from the given export.
+     *
+     * @param path the export to load
+     *
+     * @return A map of table name to table.
+     */
     public Map<String, RawTable> loadData(Path path)
     {
-        ObjectMapper mapper = new ObjectMapper();
-        
+        return loadData(path, TableSelection.all());
+    }
+
+    /**
+     * Loads the selected tables from the given export.
+     * All other tables are skipped as they are read.
+     *
+     * @param path the export to load
+     * @param selection the tables to load
+     *
+     * @return A map of table name to table.
+     */
+    public Map<String, RawTable> loadData(Path path, TableSelection selection)
+    {
+        if (snapshot == null)
+        {
+            return parseData(path, selection);
+        }
+
+        String key;
         try
         {
-            List<RawTable> rawData = mapper.readValue(path.toFile(), new TypeReference<List<RawTable>>(){});
-            
-            return rawData
-                    .stream()
-                    .collect(
-                       toMap(
-                           RawTable::getTableName,
-                           Function.identity()
-                       )
-                    );
+            key = snapshot.computeKey(path, selection);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to load data from: " + path, e);
+        }
+
+        Optional<Map<String, RawTable>> tables = snapshot.read(key);
+        if (tables.isPresent())
+        {
+            return tables.get();
+        }
+
+        Map<String, RawTable> data = parseData(path, selection);
+        snapshot.write(key, data);
+        return data;
+    }
+
+    private Map<String, RawTable> parseData(Path path, TableSelection selection)
+    {
+        TableCollector collector = new TableCollector(columnar);
+
+        if ((threads > 1) && isJson(path))
+        {
+            parseInParallel(path, selection, collector);
+        }
+        else
+        {
+            streamData(path, selection, collector);
+        }
+
+        return collector.getTables();
+    }
+
+    /**
+     * Indexes the selected tables in the given export, but only parses
+     * each one when it is first asked for. Tables can be released once
+     * they are no longer needed, so only the tables in use are held.
+     *
+     * Only an uncompressed JSON export can be indexed, so anything
+     * else is loaded up front instead. Any snapshot is not used.
+     *
+     * @param path the export to load
+     * @param selection the tables to load
+     *
+     * @return A map of table name to table, which should be closed when done with.
+     */
+    public Map<String, RawTable> loadLazily(Path path, TableSelection selection)
+    {
+        if (!isJson(path))
+        {
+            return loadData(path, selection);
+        }
+
+        FileChannel channel = null;
+        try
+        {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            ExportIndex index = ExportIndex.build(channel);
+            return new LazyRawData(path, channel, index, new JsonTableParser(selection, deduplicator), selection, columnar);
+        }
+        catch (IOException e)
+        {
+            closeQuietly(channel);
+            throw new IllegalArgumentException("Unable to load data from: " + path, e);
+        }
+    }
+
+    /**
+     * Loads the selected tables from the given input, eg. stdin.
+     *
+     * @param input the export to load
+     * @param selection the tables to load
+     *
+     * @return A map of table name to table.
+     */
+    public Map<String, RawTable> loadData(InputStream input, TableSelection selection)
+    {
+        TableCollector collector = new TableCollector(columnar);
+
+        try
+        {
+            parse(input, selection, collector);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to load data from input", e);
+        }
+
+        return collector.getTables();
+    }
+
+    /**
+     * Reads the given export, passing each row to the given handler as it is read.
+     *
+     * @param path the export to read
+     * @param handler the handler to pass each row to
+     */
+    public void streamData(Path path, RawRowHandler handler)
+    {
+        streamData(path, TableSelection.all(), handler);
+    }
+
+    /**
+     * Reads the selected tables from the given export, passing each row
+     * to the given handler as it is read.
+     *
+     * @param path the export to read
+     * @param selection the tables to read
+     * @param handler the handler to pass each row to
+     */
+    public void streamData(Path path, TableSelection selection, RawRowHandler handler)
+    {
+        try (InputStream input = Files.newInputStream(path))
+        {
+            parse(input, selection, handler);
         }
         catch (IOException e)
         {
             throw new IllegalArgumentException("Unable to load data from: " + path, e);
         }
     }
+
+    private void parse(InputStream rawInput, TableSelection selection, RawRowHandler handler)
+        throws IOException
+    {
+        try (BufferedInputStream input = new BufferedInputStream(new InputDecompressor().decompress(rawInput), BUFFER_SIZE))
+        {
+            if (isJson(input))
+            {
+                new JsonTableParser(selection, deduplicator).parse(input, handler);
+            }
+            else
+            {
+                Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8);
+                new MySqlDumpReader(selection, deduplicator).parse(reader, handler);
+            }
+        }
+    }
+
+    /*package*/ boolean isJson(Path path)
+    {
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(path), SNIFF_SIZE))
+        {
+            return isJson(input);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to load data from: " + path, e);
+        }
+    }
+
+    /*
+     * A JSON export starts with an array, whereas a dump starts with
+     * comments or statements. The stream is left where it was.
+     */
+    private boolean isJson(InputStream input)
+        throws IOException
+    {
+        input.mark(SNIFF_SIZE);
+        try
+        {
+            int b;
+            while ((b = input.read()) >= 0)
+            {
+                if (!Character.isWhitespace(b) && (b != 0xEF) && (b != 0xBB) && (b != 0xBF)) // Skip any BOM
+                {
+                    return b == '[';
+                }
+            }
+            return false;
+        }
+        finally
+        {
+            input.reset();
+        }
+    }
+
+    private void closeQuietly(FileChannel channel)
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                // Already failing, so ignore.
+            }
+        }
+    }
+
+    /*
+     * Each table is passed to the handler by a single thread,
+     * but the handler must cope with different tables at once.
+     * The largest tables are started first to balance the load.
+     */
+    private void parseInParallel(Path path, TableSelection selection, RawRowHandler handler)
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ExportIndex index = ExportIndex.build(channel);
+            JsonTableParser parser = new JsonTableParser(selection, deduplicator);
+
+            List<Callable<Void>> tasks = index.getSegments()
+                    .stream()
+                    .filter(segment -> selection.isSelected(segment.getTableName()))
+                    .sorted(Comparator.comparingLong(ExportIndex.Segment::getSize).reversed())
+                    .map(segment -> (Callable<Void>)() -> {
+                        parser.parseObject(new MappedInputStream(channel, segment.getStart(), segment.getEnd()), handler);
+                        return null;
+                    })
+                    .collect(toList());
+
+            for (Future<Void> result : pool.invokeAll(tasks))
+            {
+                result.get();
+            }
+        }
+        catch (IOException | ExecutionException e)
+        {
+            throw new IllegalArgumentException("Unable to load data from: " + path, e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading data from: " + path, e);
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Gathers the streamed rows into tables.
+     * Safe for different tables to be gathered at once.
+     */
+    /*package*/ static class TableCollector implements RawRowHandler
+    {
+        private final Map<String, RawTable> tables = new ConcurrentHashMap<>();
+        private final boolean columnar;
+
+        TableCollector(boolean columnar)
+        {
+            this.columnar = columnar;
+        }
+
+        @Override
+        public void startTable(String database, String tableName)
+        {
+            RawTable table;
+            if (columnar)
+            {
+                table = new ColumnarRawTable(database, tableName, "table");
+            }
+            else
+            {
+                table = new RawTable(database, tableName, "table", new ArrayList<>());
+            }
+            tables.put(tableName, table);
+        }
+
+        @Override
+        public void addRow(String tableName, Map<String, String> row)
+        {
+            tables.get(tableName).addRow(row);
+        }
+
+        @Override
+        public void endTable(String tableName)
+        {
+            RawTable table = tables.get(tableName);
+            if (table instanceof ColumnarRawTable)
+            {
+                ((ColumnarRawTable)table).compact();
+            }
+        }
+
+        public Map<String, RawTable> getTables()
+        {
+            return tables;
+        }
+    }
 }
@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Saves the loaded raw data to a compact binary file, so that later runs
+ * over the same input can skip parsing it.
+ *
+ * The snapshot is keyed by the input's path, size and modification time
+ * (and optionally a hash of its content), along with the table selection.
+ * Each table is stored by column: dictionary-encoded columns as their
+ * dictionary plus one code per row, others as their values. Each column is
+ * a region of the file that is memory-mapped when the snapshot is read, and
+ * the columnar tables read their values straight from those mappings, so
+ * a snapshot costs next to nothing to open. As a result, a single column
+ * cannot exceed 2GB.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class RawDataSnapshot
+{
+    private static final long MAGIC = 0x445255504C534E50L; // "DRUPLSNP"
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int ENTRY_SIZE = 2 * Integer.BYTES; // Offset and length
+
+    private static final byte PLAIN = 0;
+    private static final byte BYTE_CODES = 1;
+    private static final byte CHAR_CODES = 2;
+
+    private final Path file;
+    private boolean contentHash;
+
+    /**
+     * @param file where the snapshot is kept
+     */
+    public RawDataSnapshot(Path file)
+    {
+        this.file = file;
+        this.contentHash = false;
+    }
+
+    /**
+     * Sets whether the key includes a hash of the input's content, which
+     * catches an input replaced without changing its size or modification
+     * time, at the cost of reading the whole input on every run.
+     *
+     * @param contentHash whether to hash the input's content
+     *
+     * @return This snapshot.
+     */
+    public RawDataSnapshot withContentHash(boolean contentHash)
+    {
+        this.contentHash = contentHash;
+        return this;
+    }
+
+    /**
+     * Computes the key that identifies the given input and selection.
+     *
+     * @param input the raw data
+     * @param selection the tables that were loaded
+     *
+     * @return The key.
+     *
+     * @throws IOException if the input cannot be read
+     */
+    public String computeKey(Path input, TableSelection selection)
+        throws IOException
+    {
+        StringBuilder key = new StringBuilder()
+                .append(input.toAbsolutePath()).append('|')
+                .append(Files.size(input)).append('|')
+                .append(Files.getLastModifiedTime(input).toMillis()).append('|')
+                .append(selection);
+        if (contentHash)
+        {
+            key.append('|').append(hash(input));
+        }
+        return key.toString();
+    }
+
+    private String hash(Path input)
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+             InputStream stream = new MappedInputStream(channel, 0, channel.size()))
+        {
+            int count;
+            while ((count = stream.read(buffer, 0, buffer.length)) > 0)
+            {
+                digest.update(buffer, 0, count);
+            }
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest())
+        {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Reads the snapshot, provided it was made with the given key.
+     * Only the table and column details are read now; the values are
+     * read from the mapped file as they are asked for.
+     *
+     * @param key the expected key
+     *
+     * @return The raw data, or empty if there is no matching snapshot.
+     */
+    public Optional<Map<String, RawTable>> read(String key)
+    {
+        if (!Files.isRegularFile(file))
+        {
+            return Optional.empty();
+        }
+        // The mappings remain valid once the channel is closed.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            Cursor input = new Cursor(channel);
+            if ((input.readLong() != MAGIC) || (input.readInt() != VERSION) || !key.equals(input.readString()))
+            {
+                return Optional.empty();
+            }
+
+            int tableCount = input.readInt();
+            Map<String, RawTable> tables = new HashMap<>();
+            for (int i = 0; i < tableCount; i++)
+            {
+                RawTable table = readTable(input);
+                tables.put(table.getTableName(), table);
+            }
+            return Optional.of(tables);
+        }
+        catch (EOFException e)
+        {
+            return Optional.empty(); // Incomplete, so treat as stale.
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to read snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * Writes the given raw data to the snapshot, replacing any existing one.
+     * The snapshot is written alongside and then moved into place, so a
+     * partial snapshot is never read.
+     *
+     * @param key the key to store the data under
+     * @param tables the raw data
+     */
+    public void write(String key, Map<String, RawTable> tables)
+    {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try
+        {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE)))
+            {
+                output.writeLong(MAGIC);
+                output.writeInt(VERSION);
+                writeString(output, key);
+                output.writeInt(tables.size());
+                for (RawTable table : tables.values())
+                {
+                    writeTable(output, table);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to write snapshot: " + file, e);
+        }
+    }
+
+    private void writeTable(DataOutputStream output, RawTable table)
+        throws IOException
+    {
+        writeString(output, table.getDatabase());
+        writeString(output, table.getTableName());
+        writeString(output, table.getType());
+
+        if (table instanceof ColumnarRawTable)
+        {
+            writeColumns(output, (ColumnarRawTable)table);
+        }
+        else
+        {
+            writeRows(output, table.getData());
+        }
+    }
+
+    private void writeColumns(DataOutputStream output, ColumnarRawTable table)
+        throws IOException
+    {
+        int rows = table.getRowCount();
+        List<String> columnNames = table.getColumnNames();
+
+        output.writeInt(rows);
+        output.writeInt(columnNames.size());
+
+        for (int column = 0; column < columnNames.size(); column++)
+        {
+            final int index = column;
+            writeString(output, columnNames.get(column));
+            String[] dictionary = table.getDictionary(column);
+            if (dictionary == null)
+            {
+                writePlain(output, rows, row -> table.getValue(row, index));
+            }
+            else
+            {
+                writeCodes(output, rows, dictionary, row -> table.getCode(row, index));
+            }
+        }
+    }
+
+    private void writeRows(DataOutputStream output, List<Map<String, String>> rows)
+        throws IOException
+    {
+        Set<String> columnNames = new LinkedHashSet<>();
+        rows.forEach(row -> columnNames.addAll(row.keySet()));
+
+        output.writeInt(rows.size());
+        output.writeInt(columnNames.size());
+
+        for (String name : columnNames)
+        {
+            writeString(output, name);
+            writePlain(output, rows.size(), row -> rows.get(row).get(name));
+        }
+    }
+
+    /*
+     * A plain column is one (offset, length) entry per row, then the values.
+     */
+    private void writePlain(DataOutputStream output, int rows, IntFunction<String> values)
+        throws IOException
+    {
+        output.writeByte(PLAIN);
+        output.writeLong(writeEntries(null, rows, values, (long)rows * ENTRY_SIZE));
+        writeEntries(output, rows, values, (long)rows * ENTRY_SIZE);
+        writeValues(output, rows, values);
+    }
+
+    /*
+     * A dictionary-encoded column is the dictionary's size and where the
+     * codes start, one (offset, length) entry per dictionary value, the
+     * values and then one code per row.
+     */
+    private void writeCodes(DataOutputStream output, int rows, String[] dictionary, IntUnaryOperator codes)
+        throws IOException
+    {
+        boolean bytes = dictionary.length <= 256;
+        IntFunction<String> values = i -> dictionary[i];
+        long entriesEnd = 2 * Integer.BYTES + (long)dictionary.length * ENTRY_SIZE;
+        long codesStart = writeEntries(null, dictionary.length, values, entriesEnd);
+        checkSize(codesStart + (long)rows * (bytes ? Byte.BYTES : Character.BYTES));
+
+        output.writeByte(bytes ? BYTE_CODES : CHAR_CODES);
+        output.writeLong(codesStart + (long)rows * (bytes ? Byte.BYTES : Character.BYTES));
+        output.writeInt(dictionary.length);
+        output.writeInt((int)codesStart);
+        writeEntries(output, dictionary.length, values, entriesEnd);
+        writeValues(output, dictionary.length, values);
+        for (int row = 0; row < rows; row++)
+        {
+            int code = codes.applyAsInt(row);
+            if (bytes)
+            {
+                output.writeByte(code);
+            }
+            else
+            {
+                output.writeChar(code);
+            }
+        }
+    }
+
+    /*
+     * Writes the entries locating the given values (if there is an output),
+     * which start at the given offset within the column.
+     * Returns the offset just after the values.
+     */
+    private long writeEntries(DataOutputStream output, int count, IntFunction<String> values, long offset)
+        throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            String value = values.apply(i);
+            int length = (value == null) ? -1 : utf8Length(value);
+            if (output != null)
+            {
+                output.writeInt((int)offset);
+                output.writeInt(length);
+            }
+            offset += Math.max(length, 0);
+            checkSize(offset);
+        }
+        return offset;
+    }
+
+    private void writeValues(DataOutputStream output, int count, IntFunction<String> values)
+        throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            String value = values.apply(i);
+            if (value != null)
+            {
+                output.write(value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void checkSize(long size)
+        throws IOException
+    {
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Column too large for a snapshot");
+        }
+    }
+
+    /*
+     * The number of bytes getBytes(UTF_8) gives, without encoding.
+     * An unpaired surrogate is replaced by a single '?'.
+     */
+    private static int utf8Length(String value)
+    {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                length += 1;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && (i + 1 < value.length()) && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                length += 1;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private RawTable readTable(Cursor input)
+        throws IOException
+    {
+        String database = input.readString();
+        String tableName = input.readString();
+        String type = input.readString();
+        int rows = input.readInt();
+        int columnCount = input.readInt();
+
+        ColumnarRawTable table = new ColumnarRawTable(database, tableName, type);
+        table.setRowCount(rows);
+
+        for (int column = 0; column < columnCount; column++)
+        {
+            String name = input.readString();
+            byte encoding = input.readByte();
+            ByteBuffer region = input.map(input.readLong());
+            if (encoding == PLAIN)
+            {
+                table.addColumn(name, region);
+            }
+            else
+            {
+                table.addColumn(name, region, encoding == BYTE_CODES);
+            }
+        }
+
+        return table;
+    }
+
+    /*
+     * Strings are written as a length (-1 for null) then UTF-8 bytes,
+     * as writeUTF() cannot cope with long values such as body text.
+     */
+    private void writeString(DataOutputStream output, String value)
+        throws IOException
+    {
+        if (value == null)
+        {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    @Override
+    public String toString()
+    {
+        return file.toString();
+    }
+
+    /**
+     * Reads the table and column details, mapping each column's region.
+     */
+    private static class Cursor
+    {
+        private final FileChannel channel;
+        private final long size;
+        private long position;
+
+        Cursor(FileChannel channel)
+            throws IOException
+        {
+            this.channel = channel;
+            this.size = channel.size();
+            this.position = 0;
+        }
+
+        long readLong()
+            throws IOException
+        {
+            return read(Long.BYTES).getLong();
+        }
+
+        int readInt()
+            throws IOException
+        {
+            return read(Integer.BYTES).getInt();
+        }
+
+        byte readByte()
+            throws IOException
+        {
+            return read(Byte.BYTES).get();
+        }
+
+        String readString()
+            throws IOException
+        {
+            int length = readInt();
+            if (length < 0)
+            {
+                return null;
+            }
+            return new String(read(length).array(), StandardCharsets.UTF_8);
+        }
+
+        ByteBuffer map(long length)
+            throws IOException
+        {
+            check(length);
+            ByteBuffer region = channel.map(MapMode.READ_ONLY, position, length);
+            position += length;
+            return region;
+        }
+
+        private ByteBuffer read(int length)
+            throws IOException
+        {
+            check(length);
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            position += length;
+            return buffer;
+        }
+
+        private void check(long length)
+            throws EOFException
+        {
+            if ((length < 0) || (length > Integer.MAX_VALUE) || (position + length > size))
+            {
+                throw new EOFException();
+            }
+        }
+    }
+}
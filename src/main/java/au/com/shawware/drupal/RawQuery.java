@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * A simple query over a raw table: a scan, optionally filtered and
+ * projected, whose rows can be joined to other data.
+ *
+ * Joins are hash joins against a map keyed by the join column. The nodes
+ * map (an {@link IntKeyedMap} keyed by nid) is the index every node join
+ * shares, so no index is built over the raw tables themselves. Queries are
+ * immutable, so a query (or plan built from it) can be run on any thread.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class RawQuery
+{
+    private final RawTable table;
+    private final Predicate<Map<String, String>> condition;
+    private final List<String> columns;
+
+    private RawQuery(RawTable table, Predicate<Map<String, String>> condition, List<String> columns)
+    {
+        this.table = table;
+        this.condition = condition;
+        this.columns = columns;
+    }
+
+    /**
+     * Starts a query over every row of the given table.
+     *
+     * @param table the table to scan
+     *
+     * @return The query.
+     */
+    public static RawQuery scan(RawTable table)
+    {
+        return new RawQuery(table, null, null);
+    }
+
+    /**
+     * Keeps only the rows that meet the given condition (as well as any earlier ones).
+     *
+     * @param rowCondition the condition
+     *
+     * @return The filtered query.
+     */
+    public RawQuery where(Predicate<Map<String, String>> rowCondition)
+    {
+        Predicate<Map<String, String>> combined = (condition == null) ? rowCondition : condition.and(rowCondition);
+        return new RawQuery(table, combined, columns);
+    }
+
+    /**
+     * Keeps only the rows whose value in the given column meets the given condition.
+     *
+     * @param column the column to test
+     * @param valueCondition the condition
+     *
+     * @return The filtered query.
+     */
+    public RawQuery where(String column, Predicate<String> valueCondition)
+    {
+        return where(row -> valueCondition.test(row.get(column)));
+    }
+
+    /**
+     * Keeps only the given columns of each row.
+     *
+     * @param selected the columns to keep
+     *
+     * @return The projected query.
+     */
+    public RawQuery select(String... selected)
+    {
+        return new RawQuery(table, condition, Collections.unmodifiableList(Arrays.asList(selected)));
+    }
+
+    /**
+     * @return The query's rows, in table order.
+     */
+    public Stream<Map<String, String>> rows()
+    {
+        Stream<Map<String, String>> rows = table.getData().stream();
+        if (condition != null)
+        {
+            rows = rows.filter(condition);
+        }
+        if (columns != null)
+        {
+            rows = rows.map(this::project);
+        }
+        return rows;
+    }
+
+    /**
+     * Passes each of the query's rows to the given consumer, in table order.
+     *
+     * @param consumer the consumer
+     */
+    public void forEach(Consumer<Map<String, String>> consumer)
+    {
+        rows().forEach(consumer);
+    }
+
+    /**
+     * Joins each row to the entity whose key is in the given column.
+     *
+     * @param <T> the type of entity
+     * @param column the column holding the entity's key
+     * @param entities the entities, by key
+     * @param matched receives each row with its entity
+     * @param unmatched receives each row with no entity
+     */
+    public <T> void join(String column, Map<String, T> entities, BiConsumer<T, Map<String, String>> matched, Consumer<Map<String, String>> unmatched)
+    {
+        forEach(row -> {
+            T entity = entities.get(row.get(column));
+            if (entity != null)
+            {
+                matched.accept(entity, row);
+            }
+            else
+            {
+                unmatched.accept(row);
+            }
+        });
+    }
+
+    private Map<String, String> project(Map<String, String> row)
+    {
+        Map<String, String> projected = new LinkedHashMap<>();
+        columns.forEach(column -> projected.put(column, row.get(column)));
+        return projected;
+    }
+}
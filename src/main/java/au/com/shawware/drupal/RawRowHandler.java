@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.Map;
+
+/**
+ * Receives the raw Drupal data one row at a time as it is read.
+ *
+ * For each table, the calls are: start, zero or more rows, end.
+ * The row maps are not retained by the reader, so a handler may keep them.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public interface RawRowHandler
+{
+    /**
+     * A new table has been found.
+     *
+     * @param database the database the table belongs to (may be null)
+     * @param tableName the table's name
+     */
+    default void startTable(String database, String tableName)
+    {
+    }
+
+    /**
+     * A row has been read.
+     *
+     * @param tableName the table the row belongs to
+     * @param row the row's data (column name to value)
+     */
+    void addRow(String tableName, Map<String, String> row);
+
+    /**
+     * All the rows for the given table have been read.
+     *
+     * @param tableName the table's name
+     */
+    default void endTable(String tableName)
+    {
+    }
+}
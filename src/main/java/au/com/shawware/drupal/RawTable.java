@@ -70,6 +70,6 @@ public class RawTable
     @Override
     public String toString()
     {
-        return database + "::" + tableName + " (" + data.size() + ")";
+        return database + "::" + tableName + " (" + getData().size() + ")";
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.Optional;
+
+/**
+ * Holds the basic data for a single revision of a node.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class Revision extends Entity
+{
+    private final Node node;
+    private final String uid;
+    private final String title;
+    private final String timestamp;
+    private String log;
+    private String commentStatus;
+
+    /**
+     * @param vid the revision's ID
+     * @param node the (current) node this is a revision of
+     * @param uid the ID of the user who made the revision
+     * @param title the node's title at this revision
+     * @param timestamp when the revision was made
+     */
+    public Revision(String vid, Node node, String uid, String title, String timestamp)
+    {
+        super(vid);
+        this.node = node;
+        this.uid = uid;
+        this.title = title;
+        this.timestamp = timestamp;
+    }
+
+    public Node getNode()
+    {
+        return node;
+    }
+
+    public String getNid()
+    {
+        return node.getId();
+    }
+
+    public String getUid()
+    {
+        return uid;
+    }
+
+    public String getTitle()
+    {
+        return title;
+    }
+
+    public String getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return Whether this is the node's current revision.
+     */
+    public boolean isCurrent()
+    {
+        return getId().equals(node.getVid().orElse(null));
+    }
+
+    public Optional<String> getLog()
+    {
+        return Optional.ofNullable(log);
+    }
+
+    public void setLog(String log)
+    {
+        this.log = log;
+    }
+
+    public Optional<String> getCommentStatus()
+    {
+        return Optional.ofNullable(commentStatus);
+    }
+
+    public void setCommentStatus(String commentStatus)
+    {
+        this.commentStatus = commentStatus;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "{ " + getId() + ", " + getNid() + ", " + uid + ", \"" + title + "\", " + timestamp + " }";
+    }
+}
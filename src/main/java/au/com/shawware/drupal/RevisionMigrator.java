@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Migrates the full revision history of the nodes, which can far outnumber
+ * the nodes themselves.
+ *
+ * As with the comments, the revisions are streamed rather than extracted
+ * into the model: each raw row is converted, its node renumbered and its
+ * SQL written as it is read. Only the (current) nodes are held, to supply
+ * what the revisions do not record.
+ *
+ * D7 revision IDs are unique across all nodes and increase as revisions are
+ * made, so they are kept as they are. This also lets each node point at its
+ * current revision before the history has been read, and keeps the IDs the
+ * same from one (delta) run to the next. The revisions of nodes deleted
+ * since then are deleted before any are written.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class RevisionMigrator extends TableWorker implements RawRowHandler
+{
+    private static final String LANG_CODE = "en";
+    private static final String NULL = "NULL";
+    private static final String FIELD_TABLE_PREFIX = "field_revision_field_";
+
+    private final String rawPrefix;
+    private final String database;
+    private final IntKeyedMap<Node> nodes;
+    private final DataRenumberer renumberer;
+    private final Map<String, String> nidMap;
+    private final SqlGenerator sql;
+    private final Map<String, String> htmlFormats;
+    private final Field bodyField;
+    private final Map<String, FieldRevisions> fields;
+    private Diagnostics diagnostics;
+    private boolean upsert;
+    private Set<String> updated;
+    private Set<String> deleted;
+    private SqlGenerator.TableWriter<Revision> revisions;
+    private SqlGenerator.TableWriter<Revision> data;
+    private SqlGenerator.TableWriter<Revision> comments;
+    private SqlGenerator.TableWriter<FieldValue> bodies;
+
+    /**
+     * @param rawPrefix the raw table name prefix
+     * @param database the database to generate the revisions for
+     * @param prefix the generated table name prefix
+     * @param types the content types, whose fields' revisions are migrated
+     * @param nodes the (renumbered) nodes
+     * @param renumberer the renumberer the nodes were renumbered with
+     * @param sql the generator to write the SQL with
+     */
+    public RevisionMigrator(String rawPrefix, String database, String prefix, Map<String, ContentType> types,
+            Map<String, Node> nodes, DataRenumberer renumberer, SqlGenerator sql)
+    {
+        super(prefix);
+
+        this.rawPrefix = rawPrefix;
+        this.database = database;
+        this.nodes = new IntKeyedMap<>(nodes.size()); // The caller may yet trim its map
+        this.nodes.putAll(nodes);
+        this.renumberer = renumberer;
+        this.nidMap = renumberer.getNidMap();
+        this.sql = sql;
+        this.htmlFormats = initHtmlFormats();
+        this.bodyField = new Field("body", "text");
+        this.fields = new TreeMap<>(); // Keep the output in a stable order
+        types.values().forEach(type -> type.getFields().forEach(field ->
+                fields.putIfAbsent(rawPrefix + FIELD_TABLE_PREFIX + field.getName(), new FieldRevisions(field))));
+        this.diagnostics = new Diagnostics();
+        this.upsert = false;
+        this.updated = null;
+        this.deleted = null;
+    }
+
+    private Map<String, String> initHtmlFormats()
+    {
+        return Map.of(
+                "1", "restricted_html",
+                "3", "full_html"
+        );
+    }
+
+    /**
+     * Sets where revisions of unknown nodes are reported.
+     *
+     * @param diagnostics the diagnostics
+     *
+     * @return This migrator.
+     */
+    public RevisionMigrator withDiagnostics(Diagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+        return this;
+    }
+
+    /**
+     * Sets whether revisions already migrated are updated rather than
+     * inserted again, eg. for a delta migration.
+     *
+     * @param upsert whether to update existing revisions
+     *
+     * @return This migrator.
+     */
+    public RevisionMigrator withUpsert(boolean upsert)
+    {
+        this.upsert = upsert;
+        return this;
+    }
+
+    /**
+     * Restricts the migration to the revisions of the given nodes,
+     * eg. those updated since the last run.
+     *
+     * @param updated the (new) IDs of the nodes to migrate, or null for all
+     *
+     * @return This migrator.
+     */
+    public RevisionMigrator withUpdated(Set<String> updated)
+    {
+        this.updated = updated;
+        return this;
+    }
+
+    /**
+     * Sets the nodes whose existing revisions are to be deleted,
+     * eg. those deleted since the last run.
+     *
+     * @param deleted the (new) IDs of the nodes, or null for none
+     *
+     * @return This migrator.
+     */
+    public RevisionMigrator withDeleted(Set<String> deleted)
+    {
+        this.deleted = deleted;
+        return this;
+    }
+
+    /**
+     * Declares the raw tables (and columns) this migrator reads.
+     *
+     * @param prefix the raw table name prefix
+     *
+     * @return The selection of required tables.
+     */
+    public static TableSelection getRequiredTables(String prefix)
+    {
+        return new TableSelection()
+                .include(prefix + "node_revision", "nid", "vid", "uid", "title", "log", "timestamp", "comment")
+                .include(prefix + "field_revision_body", "entity_id", "revision_id", "delta", "body_value", "body_summary", "body_format")
+                .includePrefix(prefix + FIELD_TABLE_PREFIX, "entity_id", "revision_id", "delta", "field_*");
+    }
+
+    /**
+     * Migrates the revisions, writing the SQL as they are read.
+     *
+     * @param source reads the raw revision tables, passing their rows to the given handler
+     * @param stream the stream onto which to emit the SQL
+     */
+    public void migrate(Consumer<RawRowHandler> source, PrintStream stream)
+    {
+        sql.generateHeader(stream);
+
+        revisions = sql.openTable(new Table<>(database, getTableName("node_revision"), revisionColumns()), stream, upsert);
+        data = sql.openTable(new Table<>(database, getTableName("node_field_revision"), dataColumns()), stream, upsert);
+        comments = sql.openTable(new Table<>(database, getTableName("node_revision__comment"), commentColumns()), stream, upsert);
+        bodies = sql.openTable(new Table<>(database, getTableName("node_revision__body"), bodyColumns()), stream, upsert);
+        fields.values().forEach(field -> field.open(stream));
+        if ((deleted != null) && !deleted.isEmpty())
+        {
+            deleteRevisions();
+        }
+
+        source.accept(this);
+
+        revisions.close();
+        data.close();
+        comments.close();
+        bodies.close();
+        fields.values().forEach(field -> field.writer.close());
+
+        sql.generateFooter(stream);
+    }
+
+    private void deleteRevisions()
+    {
+        String byNid = SqlGenerator.generateIn("nid", deleted);
+        String byEntity = SqlGenerator.generateIn("entity_id", deleted);
+
+        revisions.delete(byNid);
+        data.delete(byNid);
+        comments.delete(byEntity);
+        bodies.delete(byEntity);
+        fields.values().forEach(field -> field.writer.delete(byEntity));
+    }
+
+    /**
+     * @return The number of revisions migrated.
+     */
+    public long getCount()
+    {
+        return (revisions == null) ? 0 : revisions.getCount();
+    }
+
+    @Override
+    public void addRow(String tableName, Map<String, String> row)
+    {
+        if (tableName.equals(rawPrefix + "node_revision"))
+        {
+            addRevision(row);
+        }
+        else if (tableName.equals(rawPrefix + "field_revision_body"))
+        {
+            addBody(row);
+        }
+        else
+        {
+            FieldRevisions field = fields.get(tableName);
+            if (field != null)
+            {
+                addValue(field, row);
+            }
+        }
+    }
+
+    /*
+     * Finds the (renumbered) node a revision row belongs to, if it is to
+     * be migrated.
+     */
+    private Node getNode(String oldNid, String vid, String tableName)
+    {
+        String nid = nidMap.get(oldNid);
+        if (nid == null)
+        {
+            diagnostics.report("Revision of unknown node", "%s of %s in %s", vid, oldNid, tableName);
+            return null;
+        }
+        if ((updated != null) && !updated.contains(nid))
+        {
+            return null;
+        }
+        return nodes.get(nid);
+    }
+
+    // D7 always records a log message, whereas D9 uses NULL for none.
+    private void addRevision(Map<String, String> row)
+    {
+        String vid = row.get("vid");
+        Node node = getNode(row.get("nid"), vid, rawPrefix + "node_revision");
+        if (node == null)
+        {
+            return;
+        }
+
+        Revision revision = new Revision(vid, node, row.get("uid"), row.get("title"), row.get("timestamp"));
+        String log = row.get("log");
+        revision.setLog(((log == null) || log.isEmpty()) ? null : log);
+        revision.setCommentStatus(row.get("comment"));
+
+        revisions.write(revision);
+        data.write(revision);
+        if (revision.getCommentStatus().isPresent())
+        {
+            comments.write(revision);
+        }
+    }
+
+    private void addBody(Map<String, String> row)
+    {
+        String vid = row.get("revision_id");
+        Node node = getNode(row.get("entity_id"), vid, rawPrefix + "field_revision_body");
+        if (node == null)
+        {
+            return;
+        }
+
+        String body = row.get("body_value");
+        String summary = DataExtractor.summaryOf(body, row.get("body_summary"));
+        String format = DataExtractor.formatOf(row.get("body_format"));
+        if (!htmlFormats.containsKey(format))
+        {
+            diagnostics.report("Unknown body format", "\"%s\" for revision %s", format, vid);
+        }
+
+        FieldValue value = new FieldValue(node.getId(), row.get("delta"), bodyField, renumberer.renumberPaths(nidMap, DataExtractor.bodyOf(body)));
+        value.setRevisionId(vid);
+        value.addExtra("summary", (summary == null) ? null : renumberer.renumberPaths(nidMap, summary));
+        value.addExtra("format", format);
+
+        bodies.write(value);
+    }
+
+    private void addValue(FieldRevisions field, Map<String, String> row)
+    {
+        String oldNid = row.get("entity_id");
+        String vid = row.get("revision_id");
+        if (getNode(oldNid, vid, rawPrefix + FIELD_TABLE_PREFIX + field.field.getName()) == null)
+        {
+            return;
+        }
+
+        FieldValue value = new FieldValue(oldNid, row.get("delta"), field.field, row.get(field.valueKey));
+        if (field.titleKey != null)
+        {
+            value.addExtra("title", row.get(field.titleKey));
+        }
+
+        FieldValue renumbered = renumberer.renumberValue(value, nidMap);
+        renumbered.setRevisionId(vid);
+
+        field.writer.write(renumbered);
+    }
+
+    private List<Column<Revision>> revisionColumns()
+    {
+        return new Columns<Revision>()
+                .addNumeric("nid", Revision::getNid)
+                .addNumeric("vid", Revision::getId)
+                .addText("langcode", (r) -> LANG_CODE)
+                .addNumeric("revision_uid", Revision::getUid)
+                .addNumeric("revision_timestamp", Revision::getTimestamp)
+                .addHTML("revision_log", (revision) -> revision.getLog().orElse(NULL))
+                .addNumeric("revision_default", (revision) -> revision.isCurrent() ? "1" : "0")
+                .build();
+    }
+
+    // The node's owner and creation time apply to all its revisions.
+    private List<Column<Revision>> dataColumns()
+    {
+        return new Columns<Revision>()
+                .addNumeric("nid", Revision::getNid)
+                .addNumeric("vid", Revision::getId)
+                .addText("langcode", (r) -> LANG_CODE)
+                .addNumeric("status", (r) -> "1")
+                .addNumeric("uid", (revision) -> revision.getNode().getUid())
+                .addHTML("title", Revision::getTitle)
+                .addNumeric("created", (revision) -> revision.getNode().getCreated())
+                .addNumeric("changed", Revision::getTimestamp)
+                .addNumeric("promote", (r) -> "1")
+                .addNumeric("sticky", (r) -> "0")
+                .addNumeric("default_langcode", (r) -> "1")
+                .addNumeric("revision_translation_affected", (r) -> "1")
+                .build();
+    }
+
+    private List<Column<Revision>> commentColumns()
+    {
+        return new Columns<Revision>()
+                .addText("bundle", (revision) -> DataGenerator.mapNodeType(revision.getNode().getType()))
+                .addNumeric("deleted", (r) -> "0")
+                .addNumeric("entity_id", Revision::getNid)
+                .addNumeric("revision_id", Revision::getId)
+                .addText("langcode", (r) -> LANG_CODE)
+                .addNumeric("delta", (r) -> "0")
+                .addNumeric("comment_status", (revision) -> revision.getCommentStatus().get())
+                .build();
+    }
+
+    private List<Column<FieldValue>> bodyColumns()
+    {
+        return new Columns<FieldValue>()
+                .addText("bundle", (value) -> DataGenerator.mapNodeType(nodes.get(value.getId()).getType()))
+                .addNumeric("deleted", (v) -> "0")
+                .addNumeric("entity_id", FieldValue::getId)
+                .addNumeric("revision_id", FieldValue::getRevisionId)
+                .addText("langcode", (v) -> LANG_CODE)
+                .addNumeric("delta", FieldValue::getDelta)
+                .addHTML("body_value", FieldValue::getValue)
+                .addHTML("body_summary", (value) -> (value.getExtra("summary") == null) ? NULL : value.getExtra("summary"))
+                .addText("body_format", (value) -> htmlFormats.getOrDefault(value.getExtra("format"), NULL))
+                .build();
+    }
+
+    /**
+     * The columns holding a field's revisions, worked out once per field
+     * rather than for every row, and where they are written.
+     */
+    private class FieldRevisions
+    {
+        private final Field field;
+        private final String valueKey;
+        private final String titleKey;
+        private SqlGenerator.TableWriter<FieldValue> writer;
+
+        FieldRevisions(Field field)
+        {
+            String prefix = "field_" + field.getName() + '_';
+            FieldTypeHandler handler = field.getHandler();
+
+            this.field = field;
+            this.valueKey = prefix + handler.getValueColumn();
+            this.titleKey = (handler.getTitleColumn() != null) ? prefix + handler.getTitleColumn() : null;
+        }
+
+        void open(PrintStream stream)
+        {
+            String outputFieldName = DataGenerator.outputFieldName(field.getName());
+
+            List<Column<FieldValue>> columns = new Columns<FieldValue>()
+                    .addText("bundle", (value) -> nodes.get(value.getId()).getType())
+                    .addNumeric("deleted", (v) -> "0")
+                    .addNumeric("entity_id", FieldValue::getId)
+                    .addNumeric("revision_id", FieldValue::getRevisionId)
+                    .addText("langcode", (v) -> LANG_CODE)
+                    .addNumeric("delta", FieldValue::getDelta)
+                    .build();
+            field.getHandler().addColumns("field_" + outputFieldName + "_", columns);
+
+            writer = sql.openTable(new Table<>(database, getTableName("node_revision__field_" + outputFieldName), columns), stream, upsert);
+        }
+    }
+}
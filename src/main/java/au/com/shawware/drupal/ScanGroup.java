@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Feeds several consumers of a table from a single pass over its rows.
+ *
+ * Consumers register against the tables they need, by name without the
+ * raw table name prefix. The tables can then either be scanned (once each),
+ * or the group can be used as a handler so the consumers are fed as the
+ * rows are streamed in (under their full, prefixed names).
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class ScanGroup extends TableWorker implements RawRowHandler
+{
+    private final Map<String, List<Consumer<Map<String, String>>>> consumers;
+
+    /**
+     * @param prefix the raw table name prefix
+     */
+    public ScanGroup(String prefix)
+    {
+        super(prefix);
+
+        this.consumers = new LinkedHashMap<>();
+    }
+
+    /**
+     * Registers a consumer of the given table's rows.
+     * Each table's consumers are fed each row in the order they registered.
+     *
+     * @param tableName the table's name (without the prefix)
+     * @param consumer the consumer
+     *
+     * @return This group.
+     */
+    public ScanGroup register(String tableName, Consumer<Map<String, String>> consumer)
+    {
+        consumers.computeIfAbsent(getTableName(tableName), name -> new ArrayList<>()).add(consumer);
+        return this;
+    }
+
+    /**
+     * @return The (full) names of the tables with consumers, in the order they were registered.
+     */
+    public Set<String> getTableNames()
+    {
+        return Collections.unmodifiableSet(consumers.keySet());
+    }
+
+    /**
+     * Passes each of the given table's rows to all of its consumers.
+     *
+     * @param tableName the table's (full) name
+     * @param rows the table's rows
+     */
+    public void scan(String tableName, Iterable<Map<String, String>> rows)
+    {
+        List<Consumer<Map<String, String>>> tableConsumers = consumers.get(tableName);
+        if (tableConsumers == null)
+        {
+            return;
+        }
+        for (Map<String, String> row : rows)
+        {
+            tableConsumers.forEach(consumer -> consumer.accept(row));
+        }
+    }
+
+    @Override
+    public void addRow(String tableName, Map<String, String> row)
+    {
+        List<Consumer<Map<String, String>>> tableConsumers = consumers.get(tableName);
+        if (tableConsumers != null)
+        {
+            tableConsumers.forEach(consumer -> consumer.accept(row));
+        }
+    }
+}
@@ -8,8 +8,12 @@
 package au.com.shawware.drupal;
 
 import java.io.PrintStream;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static java.util.stream.Collectors.joining;
 
@@ -20,6 +24,48 @@ import static java.util.stream.Collectors.joining;
  */
 public class SqlGenerator
 {
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private Diagnostics diagnostics;
+    private int batchSize;
+
+    public SqlGenerator()
+    {
+        this.diagnostics = new Diagnostics();
+        this.batchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Sets the number of rows in each INSERT when rows are written as
+     * they are produced.
+     *
+     * @param batchSize the number of rows per INSERT
+     *
+     * @return This generator.
+     */
+    public SqlGenerator withBatchSize(int batchSize)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets where problems with the generated data are reported.
+     *
+     * @param diagnostics the diagnostics
+     *
+     * @return This generator.
+     */
+    public SqlGenerator withDiagnostics(Diagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+        return this;
+    }
+
     /**
      * Generates the necessary SQL.
      * 
@@ -39,18 +85,113 @@ public class SqlGenerator
         generateFooter(stream);
     }
     
+    /**
+     * Generates the SQL to apply a delta to the data generated by earlier
+     * runs. For each table, the rows of deleted entities are deleted, as are
+     * all the rows of updated entities in tables that can hold several per
+     * entity. The given rows are then inserted, or updated if already there.
+     * Existing UUIDs are left alone, so that references to them still hold.
+     *
+     * @param data the data for the updated entities
+     * @param delta the delta
+     * @param stream the stream onto which to emit the SQL
+     */
+    public void generateDelta(Map<String, Table<? extends Entity>> data, MigrationDelta delta, PrintStream stream)
+    {
+        generateHeader(stream);
+
+        data.keySet().forEach(tableName -> {
+            Table<?> table = data.get(tableName);
+            TableKey key = table.getKey();
+            if (key != null)
+            {
+                Set<String> ids = new TreeSet<>(Comparator.comparing(Integer::valueOf));
+                ids.addAll(delta.getDeleted(key.getKind()));
+                if (key.isMultiValued())
+                {
+                    ids.addAll(delta.getUpdated(key.getKind()));
+                }
+                if (!ids.isEmpty())
+                {
+                    stream.println(generateDeletion(table, key, ids));
+                }
+            }
+            if (!table.getData().isEmpty())
+            {
+                stream.println(generateUpsert(table));
+                stream.println();
+            }
+        });
+
+        generateFooter(stream);
+    }
+
     private String generateTable(Table<? extends Entity> table)
     {
         if (table.getData().isEmpty())
         {
-            System.err.println("Empty table found: " + table.getTableName());
+            diagnostics.report("Empty table", "%s", table.getTableName());
             return "\n";
         }
+        return generateInsert(table, ";\n");
+    }
+
+    private String generateInsert(Table<? extends Entity> table, String suffix)
+    {
         String prefix = "INSERT INTO `" + table.getTableName() + "` " + generateColumns(table.getColumnNames()) + " VALUES\n";
 
         return table.getData().stream()
                 .map(row -> generateValues(table.getColumns(), row))
-                .collect(joining(",\n", prefix, ";\n"));
+                .collect(joining(",\n", prefix, suffix));
+    }
+
+    private String generateUpsert(Table<? extends Entity> table)
+    {
+        return generateInsert(table, generateUpdate(table.getColumnNames()));
+    }
+
+    private String generateUpdate(List<String> columnNames)
+    {
+        return columnNames.stream()
+                .filter(name -> !"uuid".equals(name))
+                .map(name -> "`" + name + "` = VALUES(`" + name + "`)")
+                .collect(joining(", ", "\nON DUPLICATE KEY UPDATE ", ";\n"));
+    }
+
+    private String generateDeletion(Table<? extends Entity> table, TableKey key, Set<String> ids)
+    {
+        return "DELETE FROM `" + table.getTableName() + "` WHERE " + generateIn(key.getColumn(), ids) + ";";
+    }
+
+    /**
+     * Generates the condition that a column holds one of the given (numeric) IDs.
+     *
+     * @param column the column
+     * @param ids the IDs, of which there must be at least one
+     *
+     * @return The condition.
+     */
+    /*package*/ static String generateIn(String column, Collection<String> ids)
+    {
+        return ids.stream()
+                .sorted(Comparator.comparing(Long::valueOf))
+                .collect(joining(", ", "`" + column + "` IN (", ")"));
+    }
+
+    /**
+     * Opens a table whose rows are to be written as they are produced,
+     * rather than held until the whole table has been generated.
+     *
+     * @param <T> the type of entity
+     * @param table the table's definition (its rows are ignored)
+     * @param stream the stream onto which to emit the SQL
+     * @param upsert whether existing rows are to be updated
+     *
+     * @return The table's writer, which must be closed once all its rows are written.
+     */
+    public <T extends Entity> TableWriter<T> openTable(Table<T> table, PrintStream stream, boolean upsert)
+    {
+        return new TableWriter<>(table, stream, upsert);
     }
 
     private <T extends Entity> String generateValues(List<Column<T>> columns, Map<String, String> row)
@@ -64,11 +205,22 @@ public class SqlGenerator
                 .collect(joining(", ", "(", ")"));
     }
 
+    private <T extends Entity> String generateValues(List<Column<T>> columns, T entity)
+    {
+        return columns.stream()
+                .map(column -> generateValue(
+                        column.getType(),
+                        column.getValue(entity)
+                    )
+                )
+                .collect(joining(", ", "(", ")"));
+    }
+
     private String generateValue(String type, String value)
     {
         if (value == null)
         {
-            System.err.format("Null value for type: %s%n", type);
+            diagnostics.report("Null value", "for type %s", type);
             value = "NULL";
         }
         String result = value;
@@ -91,7 +243,7 @@ public class SqlGenerator
                 .collect(joining(", ", "(", ")")); 
     }
 
-    private void generateHeader(PrintStream stream)
+    /*package*/ void generateHeader(PrintStream stream)
     {
         stream.println("SET SQL_MODE = \"NO_AUTO_VALUE_ON_ZERO\";");
         stream.println("SET AUTOCOMMIT = 0;");
@@ -100,8 +252,100 @@ public class SqlGenerator
         stream.println();
     }
 
-    private void generateFooter(PrintStream stream)
+    /*package*/ void generateFooter(PrintStream stream)
     {
         stream.println("COMMIT;");
     }
+
+    /**
+     * Writes a table's rows as they are produced. The rows are gathered
+     * into batches, each emitted as a single (multi-row) INSERT, so that
+     * only one batch is held at a time.
+     */
+    public class TableWriter<T extends Entity>
+    {
+        private final String tableName;
+        private final List<Column<T>> columns;
+        private final PrintStream stream;
+        private final String prefix;
+        private final String suffix;
+        private final StringBuilder batch;
+        private int count;
+        private long total;
+
+        private TableWriter(Table<T> table, PrintStream stream, boolean upsert)
+        {
+            this.tableName = table.getTableName();
+            this.columns = table.getColumns();
+            this.stream = stream;
+            this.prefix = "INSERT INTO `" + table.getTableName() + "` " + generateColumns(table.getColumnNames()) + " VALUES\n";
+            this.suffix = upsert ? generateUpdate(table.getColumnNames()) : ";\n";
+            this.batch = new StringBuilder();
+            this.count = 0;
+            this.total = 0;
+        }
+
+        /**
+         * Writes a row for the given entity.
+         *
+         * @param entity the entity
+         */
+        public void write(T entity)
+        {
+            batch.append((count == 0) ? prefix : ",\n").append(generateValues(columns, entity));
+            count++;
+            total++;
+            if (count == batchSize)
+            {
+                flush();
+            }
+        }
+
+        /**
+         * Deletes the table's existing rows that meet the given condition.
+         * Any rows not yet written are written first.
+         *
+         * @param condition the SQL condition, eg. from {@link SqlGenerator#generateIn(String, Collection)}
+         */
+        public void delete(String condition)
+        {
+            flush();
+            stream.println("DELETE FROM `" + tableName + "` WHERE " + condition + ";");
+            stream.println();
+        }
+
+        /**
+         * @return The name of the table written.
+         */
+        public String getTableName()
+        {
+            return tableName;
+        }
+
+        /**
+         * Writes any rows still to be written.
+         */
+        public void close()
+        {
+            flush();
+        }
+
+        /**
+         * @return The number of rows written.
+         */
+        public long getCount()
+        {
+            return total;
+        }
+
+        private void flush()
+        {
+            if (count > 0)
+            {
+                stream.println(batch.append(suffix));
+                batch.setLength(0);
+                count = 0;
+            }
+        }
+    }
 }
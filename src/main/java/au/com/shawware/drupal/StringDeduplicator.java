@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Shares a single instance between equal raw values, eg. content type
+ * names, uids, formats, flags and timestamps, as they are loaded.
+ *
+ * The canonical instances are held in a bounded concurrent cache.
+ * Each column keeps its own hit-rate statistics and, once it has been
+ * sampled enough, stops using the cache if too few of its values repeat
+ * (eg. body text). Safe to use from several threads at once.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class StringDeduplicator
+{
+    private static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+    private static final int DEFAULT_MAX_LENGTH = 64;
+    private static final int DEFAULT_SAMPLE_SIZE = 10_000;
+    private static final double DEFAULT_MIN_HIT_RATE = 0.5;
+
+    private final int maxEntries;
+    private final int maxLength;
+    private final int sampleSize;
+    private final double minHitRate;
+    private final Map<String, String> cache;
+    private final AtomicInteger entries;
+    private final Map<String, ColumnDeduplicator> columns;
+
+    public StringDeduplicator()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_LENGTH, DEFAULT_SAMPLE_SIZE, DEFAULT_MIN_HIT_RATE);
+    }
+
+    /**
+     * Creates a new deduplicator.
+     *
+     * @param maxEntries the maximum number of canonical instances to hold
+     * @param maxLength the longest value worth deduplicating
+     * @param sampleSize the number of values to see before judging a column
+     * @param minHitRate the proportion of values that must repeat for a column to keep deduplicating
+     */
+    public StringDeduplicator(int maxEntries, int maxLength, int sampleSize, double minHitRate)
+    {
+        this.maxEntries = maxEntries;
+        this.maxLength = maxLength;
+        this.sampleSize = sampleSize;
+        this.minHitRate = minHitRate;
+        this.cache = new ConcurrentHashMap<>();
+        this.entries = new AtomicInteger();
+        this.columns = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Retrieves the deduplicator for the given column.
+     * Callers should hold on to this rather than look it up for each value.
+     *
+     * @param tableName the table's name
+     * @param column the column's name
+     *
+     * @return The column's deduplicator.
+     */
+    public ColumnDeduplicator forColumn(String tableName, String column)
+    {
+        return columns.computeIfAbsent(tableName + "." + column, ColumnDeduplicator::new);
+    }
+
+    /**
+     * @return A summary of the columns, how often their values repeated and whether they were deduplicated.
+     */
+    public String getSummary()
+    {
+        return columns.values()
+                .stream()
+                .sorted((c1, c2) -> c1.name.compareTo(c2.name))
+                .map(ColumnDeduplicator::toString)
+                .collect(joining("\n", "Canonical values: " + entries.get() + "\n", ""));
+    }
+
+    private String canonicalise(String value)
+    {
+        String canonical = cache.get(value);
+        if (canonical == null)
+        {
+            if (entries.get() >= maxEntries)
+            {
+                return value; // Full, so just keep the ones we have.
+            }
+            canonical = cache.putIfAbsent(value, value);
+            if (canonical == null)
+            {
+                entries.incrementAndGet();
+                canonical = value;
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Deduplicates the values of a single column.
+     */
+    public class ColumnDeduplicator
+    {
+        private final String name;
+        private final AtomicLong lookups; // Columns belong to a table, so are rarely contended
+        private final LongAdder hits;
+        private volatile boolean enabled;
+
+        ColumnDeduplicator(String name)
+        {
+            this.name = name;
+            this.lookups = new AtomicLong();
+            this.hits = new LongAdder();
+            this.enabled = true;
+        }
+
+        /**
+         * Deduplicates the given value.
+         *
+         * @param value the value (may be null)
+         *
+         * @return The canonical instance of the value, or the value itself.
+         */
+        public String deduplicate(String value)
+        {
+            if (!enabled || (value == null) || (value.length() > maxLength))
+            {
+                return value;
+            }
+            String canonical = canonicalise(value);
+            if (canonical != value)
+            {
+                hits.increment();
+            }
+            long count = lookups.incrementAndGet();
+            if ((count % sampleSize == 0) && (getHitRate() < minHitRate))
+            {
+                enabled = false;
+            }
+            return canonical;
+        }
+
+        /**
+         * @return The proportion of values found in the cache.
+         */
+        public double getHitRate()
+        {
+            long count = lookups.get();
+            return (count == 0) ? 0.0 : (double)hits.sum() / count;
+        }
+
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %d, %.2f%s", name, lookups.get(), getHitRate(), enabled ? "" : " (off)");
+        }
+    }
+}
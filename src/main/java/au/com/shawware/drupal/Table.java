@@ -22,6 +22,7 @@ public class Table<T extends Entity> extends RawTable
 {
     private final List<Column<T>> columns;
     private final List<String> columnNames;
+    private TableKey key;
     
     public Table(String database, String tableName, List<Column<T>> columns)
     {
@@ -31,6 +32,27 @@ public class Table<T extends Entity> extends RawTable
         this.columnNames = columns.stream().map(Column::getName).collect(toList());
     }
 
+    /**
+     * Sets which entity each row belongs to.
+     *
+     * @param key the table's key
+     *
+     * @return This table.
+     */
+    public Table<T> withKey(TableKey key)
+    {
+        this.key = key;
+        return this;
+    }
+
+    /**
+     * @return Which entity each row belongs to (may be null).
+     */
+    public TableKey getKey()
+    {
+        return key;
+    }
+
     public List<Column<T>> getColumns()
     {
         return columns;
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import au.com.shawware.drupal.MigrationManifest.Kind;
+
+/**
+ * Identifies the entity each of a generated table's rows belongs to,
+ * so that just the rows for particular entities can be replaced.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class TableKey
+{
+    private final Kind kind;
+    private final String column;
+    private final boolean multiValued;
+
+    private TableKey(Kind kind, String column, boolean multiValued)
+    {
+        this.kind = kind;
+        this.column = column;
+        this.multiValued = multiValued;
+    }
+
+    /**
+     * @param kind the kind of entity
+     * @param column the column holding the entity's ID
+     *
+     * @return The key of a table with one row per entity.
+     */
+    public static TableKey single(Kind kind, String column)
+    {
+        return new TableKey(kind, column, false);
+    }
+
+    /**
+     * @param kind the kind of entity
+     * @param column the column holding the entity's ID
+     *
+     * @return The key of a table with any number of rows per entity.
+     */
+    public static TableKey multiple(Kind kind, String column)
+    {
+        return new TableKey(kind, column, true);
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    public String getColumn()
+    {
+        return column;
+    }
+
+    /**
+     * @return Whether an entity can have any number of rows, which must
+     *         all be replaced when it changes.
+     */
+    public boolean isMultiValued()
+    {
+        return multiValued;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "{ " + kind + ", " + column + (multiValued ? ", multiple" : "") + " }";
+    }
+}
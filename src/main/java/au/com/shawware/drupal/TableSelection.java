@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Specifies which raw tables are to be loaded and, optionally,
+ * which of their columns are to be kept (the projection).
+ * Tables can be selected by name or by a name prefix.
+ * Columns can be selected by name or, with a trailing '*', by prefix.
+ * An empty selection selects every table.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class TableSelection
+{
+    private static final Projection ALL_COLUMNS = new Projection(new String[0]);
+
+    private final Map<String, Projection> tableNames;
+    private final Map<String, Projection> prefixes;
+
+    public TableSelection()
+    {
+        this.tableNames = new HashMap<>();
+        this.prefixes = new LinkedHashMap<>();
+    }
+
+    /**
+     * @return A selection that includes every table.
+     */
+    public static TableSelection all()
+    {
+        return new TableSelection();
+    }
+
+    /**
+     * Selects the given table.
+     *
+     * @param tableName the table's full name
+     * @param columns the columns to keep (none means all)
+     *
+     * @return This selection.
+     */
+    public TableSelection include(String tableName, String... columns)
+    {
+        tableNames.put(tableName, new Projection(columns));
+        return this;
+    }
+
+    /**
+     * Selects all tables whose name starts with the given prefix.
+     *
+     * @param prefix the table name prefix
+     * @param columns the columns to keep (none means all)
+     *
+     * @return This selection.
+     */
+    public TableSelection includePrefix(String prefix, String... columns)
+    {
+        prefixes.put(prefix, new Projection(columns));
+        return this;
+    }
+
+    /**
+     * @return Whether this selection includes every table.
+     */
+    public boolean isAll()
+    {
+        return tableNames.isEmpty() && prefixes.isEmpty();
+    }
+
+    /**
+     * Determines whether the given table is selected.
+     *
+     * @param tableName the table's full name
+     *
+     * @return Whether to load the table.
+     */
+    public boolean isSelected(String tableName)
+    {
+        return isAll() || (find(tableName) != null);
+    }
+
+    /**
+     * Determines which columns of the given (selected) table to keep.
+     *
+     * @param tableName the table's full name
+     *
+     * @return A test for whether to keep a column.
+     */
+    public Predicate<String> getProjection(String tableName)
+    {
+        Projection projection = isAll() ? null : find(tableName);
+        return (projection == null) ? ALL_COLUMNS : projection;
+    }
+
+    private Projection find(String tableName)
+    {
+        Projection projection = tableNames.get(tableName);
+        if (projection == null)
+        {
+            for (Map.Entry<String, Projection> entry : prefixes.entrySet())
+            {
+                if (tableName.startsWith(entry.getKey()))
+                {
+                    projection = entry.getValue();
+                    break;
+                }
+            }
+        }
+        return projection;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "{ " + new TreeMap<>(tableNames) + ", " + prefixes + " }";
+    }
+
+    /**
+     * The columns to keep for a table.
+     */
+    private static class Projection implements Predicate<String>
+    {
+        private final Set<String> columns;
+        private final String[] prefixes;
+
+        Projection(String[] columns)
+        {
+            this.columns = Set.of(
+                    Arrays.stream(columns).filter(column -> !column.endsWith("*")).toArray(String[]::new)
+                );
+            this.prefixes = Arrays.stream(columns)
+                    .filter(column -> column.endsWith("*"))
+                    .map(column -> column.substring(0, column.length() - 1))
+                    .toArray(String[]::new);
+        }
+
+        @Override
+        public boolean test(String column)
+        {
+            if (columns.isEmpty() && (prefixes.length == 0))
+            {
+                return true;
+            }
+            if (columns.contains(column))
+            {
+                return true;
+            }
+            for (String prefix : prefixes)
+            {
+                if (column.startsWith(prefix))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return new TreeSet<>(columns) + " " + Arrays.toString(prefixes);
+        }
+    }
+}
@@ -21,6 +21,11 @@ abstract class TableWorker
         this.prefix = prefix;
     }
     
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
     public String getTableName(String tableName)
     {
         return prefix + tableName;
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+/**
+ * Verify the streamed migration of comments.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class CommentMigratorTest
+{
+    private static final Map<String, String> NID_MAP = Map.of("10", "3", "11", "4");
+
+    @Test
+    public void testAllComments()
+    {
+        Diagnostics diagnostics = new Diagnostics();
+        CommentMigrator migrator = new CommentMigrator("uhm_", "db", "d9_", NID_MAP, new SqlGenerator())
+                .withDiagnostics(diagnostics);
+
+        String sql = migrate(migrator);
+
+        assertThat(migrator.getCount(), is(2L));
+        assertThat(sql.contains("(1, 'comment', 'en', NULL, 3, 'Re: 1'"), is(true));
+        assertThat(sql.contains("(2, 'comment', 'en', NULL, 4, 'Re: 2'"), is(true));
+        assertThat(sql.contains("'Body 1'"), is(true));
+        assertThat(sql.contains("'Body 2'"), is(true));
+        assertThat(sql.contains("'Body 7'"), is(false)); // On an unknown node
+        assertThat(sql.contains("DELETE"), is(false));
+        assertThat(sql.contains("ON DUPLICATE KEY UPDATE"), is(false));
+        assertThat(diagnostics.isEmpty(), is(false));
+    }
+
+    @Test
+    public void testDelta()
+    {
+        CommentMigrator migrator = new CommentMigrator("uhm_", "db", "d9_", NID_MAP, new SqlGenerator())
+                .withUpsert(true)
+                .withUpdated(Set.of("3"))
+                .withDeleted(Set.of("5"));
+
+        String sql = migrate(migrator);
+
+        // Only the comment on the updated node is written, without the others' bodies.
+        assertThat(migrator.getCount(), is(1L));
+        assertThat(sql.contains("(1, 'comment', 'en', NULL, 3, 'Re: 1'"), is(true));
+        assertThat(sql.contains("'Re: 2'"), is(false));
+        assertThat(sql.contains("'Body 1'"), is(true));
+        assertThat(sql.contains("'Body 2'"), is(false));
+        assertThat(sql.contains("'Body 7'"), is(false));
+        assertThat(sql.contains("ON DUPLICATE KEY UPDATE"), is(true));
+
+        String stale = "SELECT `cid` FROM `d9_comment_field_data` WHERE `entity_id` IN (3, 5) AND NOT `cid` IN (1)";
+        assertThat(sql.contains("DELETE FROM `d9_comment_entity` WHERE `cid` IN (" + stale + ");"), is(true));
+        assertThat(sql.contains("DELETE FROM `d9_comment__comment_body` WHERE `entity_id` IN (" + stale + ");"), is(true));
+        assertThat(sql.contains("DELETE FROM `d9_comment_field_data` WHERE `entity_id` IN (3, 5) AND NOT `cid` IN (1);"), is(true));
+
+        // The stale comments are deleted once the others are written, and their data last.
+        assertThat(sql.indexOf("INSERT INTO `d9_comment__comment_body`") < sql.indexOf("DELETE FROM `d9_comment_entity`"), is(true));
+        assertThat(sql.indexOf("DELETE FROM `d9_comment__comment_body`") < sql.indexOf("DELETE FROM `d9_comment_field_data`"), is(true));
+    }
+
+    /*
+     * The comments are read before their bodies, as they are in an export.
+     */
+    private String migrate(CommentMigrator migrator)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        migrator.migrate(handler -> {
+            handler.addRow("uhm_comment", comment("1", "10"));
+            handler.addRow("uhm_comment", comment("2", "11"));
+            handler.addRow("uhm_comment", comment("7", "99"));
+            handler.addRow("uhm_field_data_comment_body", body("1"));
+            handler.addRow("uhm_field_data_comment_body", body("2"));
+            handler.addRow("uhm_field_data_comment_body", body("7"));
+        }, new PrintStream(output, true, StandardCharsets.UTF_8));
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> comment(String cid, String nid)
+    {
+        Map<String, String> row = new HashMap<>();
+        row.put("cid", cid);
+        row.put("pid", "0");
+        row.put("nid", nid);
+        row.put("uid", "1");
+        row.put("subject", "Re: " + cid);
+        row.put("hostname", "127.0.0.1");
+        row.put("created", "100");
+        row.put("changed", "101");
+        row.put("status", "1");
+        row.put("thread", "01/");
+        row.put("name", "bob");
+        row.put("mail", "");
+        row.put("homepage", "");
+        return row;
+    }
+
+    private static Map<String, String> body(String cid)
+    {
+        return Map.of("entity_id", cid, "delta", "0", "comment_body_value", "Body " + cid, "comment_body_format", "1");
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+/**
+ * Verify that problems are counted and sampled.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class DiagnosticsTest
+{
+    @Test
+    public void testCountsAndSamples()
+    {
+        Diagnostics diagnostics = new Diagnostics(2);
+
+        assertThat(diagnostics.isEmpty(), is(true));
+
+        IntStream.range(0, 10000).parallel().forEach(nid -> diagnostics.report("Unknown node", "%d", nid));
+        diagnostics.report("Unknown tag", "%s", "42");
+
+        assertThat(diagnostics.getCount("Unknown node"), is(10000L));
+        assertThat(diagnostics.getCount("Unknown tag"), is(1L));
+        assertThat(diagnostics.getCount("Unknown file"), is(0L));
+
+        String[] lines = diagnostics.getSummary().split("\n");
+        assertThat(lines.length, is(6));
+        assertThat(lines[0], is("Problems: 2"));
+        assertThat(lines[1], is("Unknown node: 10000"));
+        assertThat(lines[4], is("Unknown tag: 1"));
+        assertThat(lines[5], is("    42"));
+    }
+}
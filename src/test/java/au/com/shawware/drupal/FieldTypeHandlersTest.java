@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import org.junit.Test;
+
+/**
+ * Verify the handling of image and file field values.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class FieldTypeHandlersTest
+{
+    @Test
+    public void testImageValues()
+    {
+        Field field = new Field("photo", "image");
+        FieldTypeHandler handler = field.getHandler();
+        Diagnostics diagnostics = new Diagnostics();
+
+        FieldValue value = handler.renumber(new FieldValue("10", "0", field, "100"), "3", Map.of("10", "3"), Map.of("100", "1"), diagnostics);
+
+        assertThat(handler.getValueColumn(), is("value"));
+        assertThat(handler.refersToFiles(), is(false));
+        assertThat(value.getId(), is("3"));
+        assertThat(value.getValue(), is("100"));
+        assertThat(diagnostics.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testFileValues()
+    {
+        Field field = new Field("attachment", "filefield");
+        FieldTypeHandler handler = field.getHandler();
+        Diagnostics diagnostics = new Diagnostics();
+
+        FieldValue known = handler.renumber(new FieldValue("10", "0", field, "100"), "3", Map.of("10", "3"), Map.of("100", "1"), diagnostics);
+        FieldValue unknown = handler.renumber(new FieldValue("10", "1", field, "999"), "3", Map.of("10", "3"), Map.of("100", "1"), diagnostics);
+
+        assertThat(handler.getValueColumn(), is("fid"));
+        assertThat(handler.refersToFiles(), is(true));
+        assertThat(known.getValue(), is("1"));
+        assertThat(unknown.getValue(), is(nullValue()));
+        assertThat(diagnostics.isEmpty(), is(false));
+    }
+
+    @Test
+    public void testReferencedFilesRenumbered()
+    {
+        Field field = new Field("attachment", "filefield");
+        Map<String, Node> nodes = new HashMap<>();
+        nodes.put("10", new Node("10", "story", "1", "100", "200", "Ten"));
+        nodes.get("10").setBody("Body");
+        Map<String, List<FieldValue>> values = new HashMap<>();
+        values.put("attachment", new ArrayList<>(List.of(new FieldValue("10", "0", field, "101"))));
+        Map<String, File> files = new HashMap<>();
+        files.put("100", new File("100", "1", "images/a.jpg", "image/jpeg", "10"));
+        files.put("101", new File("101", "1", "files/b.pdf", "application/pdf", "20"));
+        Map<String, String> imageMap = new HashMap<>(Map.of("10", "100"));
+
+        assertThat(DataExtractor.getFileReferences(values), is(Set.of("101")));
+
+        Diagnostics diagnostics = new Diagnostics();
+        DataRenumberer renumberer = new DataRenumberer().withDiagnostics(diagnostics);
+        renumberer.renumberContent(3, nodes, values, files, imageMap, new HashMap<>());
+
+        assertThat(renumberer.getFidMap(), is(Map.of("100", "1", "101", "2")));
+        assertThat(values.get("attachment").get(0).getValue(), is("2"));
+        assertThat(imageMap, is(Map.of("3", "1")));
+        assertThat(diagnostics.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import org.junit.Test;
+
+/**
+ * Verify the int-keyed map against a standard map.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class IntKeyedMapTest
+{
+    @Test
+    public void testStringKeys()
+    {
+        IntKeyedMap<String> map = new IntKeyedMap<>();
+        map.put("100", "a");
+        map.put("7", null);
+
+        assertThat(map.get("100"), is("a"));
+        assertThat(map.get(100), is("a"));
+        assertThat(map.containsKey("7"), is(true));
+        assertThat(map.get("7"), is(nullValue()));
+        assertThat(map.containsKey("007"), is(false));
+        assertThat(map.containsKey("node"), is(false));
+        assertThat(map.get(null), is(nullValue()));
+        assertThat(new HashMap<>(map).keySet(), is(Map.of("100", "", "7", "").keySet()));
+        assertThat(Arrays.toString(map.sortedKeys()), is("[7, 100]"));
+    }
+
+    @Test
+    public void testRandomOperations()
+    {
+        Random random = new Random(42);
+        IntKeyedMap<Integer> map = new IntKeyedMap<>();
+        Map<String, Integer> expected = new HashMap<>();
+
+        for (int i = 0; i < 100_000; i++)
+        {
+            String key = String.valueOf(random.nextInt(2_000));
+            int operation = random.nextInt(3);
+            if (operation == 0)
+            {
+                assertThat(map.put(key, i), is(expected.put(key, i)));
+            }
+            else if (operation == 1)
+            {
+                assertThat(map.remove(key), is(expected.remove(key)));
+            }
+            else
+            {
+                assertThat(map.get(key), is(expected.get(key)));
+            }
+            assertThat(map.size(), is(expected.size()));
+        }
+
+        assertThat(map, is(expected));
+        assertThat(Arrays.toString(map.sortedKeys()), is(Arrays.toString(IntKeyedMap.sortedKeys(expected))));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify the loading of raw data from a (D7-shaped) database.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class JdbcRawDataLoaderTest
+{
+    private static final String URL = "jdbc:h2:mem:d7;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+
+    private Connection connection;
+
+    @Before
+    public void setUp()
+        throws SQLException
+    {
+        connection = DriverManager.getConnection(URL);
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("CREATE TABLE uhm_node (nid INT NOT NULL, type VARCHAR(32) NOT NULL, uid INT, " +
+                              "created INT, changed INT, title VARCHAR(255), PRIMARY KEY (nid))");
+            statement.execute("INSERT INTO uhm_node VALUES (1, 'story', 1, 100, 200, 'First'), " +
+                              "(2, 'page', 1, 300, 400, NULL)");
+            statement.execute("CREATE TABLE uhm_url_alias (pid INT NOT NULL, source VARCHAR(255), alias VARCHAR(255), language VARCHAR(12))");
+            statement.execute("INSERT INTO uhm_url_alias VALUES (7, 'node/1', 'first', 'en')");
+            statement.execute("CREATE TABLE uhm_cache (cid VARCHAR(255), data BLOB)");
+            statement.execute("INSERT INTO uhm_cache VALUES ('a', NULL)");
+        }
+    }
+
+    @After
+    public void tearDown()
+        throws SQLException
+    {
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("DROP ALL OBJECTS");
+        }
+        connection.close();
+    }
+
+    @Test
+    public void testSelectedTables()
+    {
+        Map<String, RawTable> rawData = new JdbcRawDataLoader(URL, new Properties())
+                .withThreads(2)
+                .withFetchSize(1)
+                .loadData(DataExtractor.getRequiredTables("uhm_"));
+
+        assertThat(rawData.size(), is(2));
+        assertThat(rawData.containsKey("uhm_cache"), is(false));
+
+        Map<String, Map<String, String>> nodes = byNid(rawData.get("uhm_node").getData());
+        assertThat(nodes.size(), is(2));
+        assertThat(nodes.get("1").get("type"), is("story"));
+        assertThat(nodes.get("2").get("title"), is(nullValue()));
+
+        Map<String, String> alias = rawData.get("uhm_url_alias").getData().get(0);
+        assertThat(alias.size(), is(3));
+        assertThat(alias.get("source"), is("node/1"));
+        assertThat(alias.containsKey("language"), is(false));
+    }
+
+    @Test
+    public void testColumnar()
+    {
+        Map<String, RawTable> rawData = new JdbcRawDataLoader(URL, new Properties())
+                .withColumnar(true)
+                .withDeduplicator(new StringDeduplicator())
+                .loadData(new TableSelection().include("uhm_node", "nid", "title"));
+
+        RawTable nodes = rawData.get("uhm_node");
+        assertThat(nodes instanceof ColumnarRawTable, is(true));
+        Map<String, String> first = byNid(nodes.getData()).get("1");
+        assertThat(first.get("title"), is("First"));
+        assertThat(first.size(), is(2));
+    }
+
+    /*
+     * No order is asked for, so the rows are looked up by node ID.
+     */
+    private static Map<String, Map<String, String>> byNid(List<Map<String, String>> rows)
+    {
+        return rows.stream().collect(toMap(row -> row.get("nid"), identity()));
+    }
+}
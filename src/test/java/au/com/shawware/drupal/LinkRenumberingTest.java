@@ -77,4 +77,24 @@ public class LinkRenumberingTest
         
         assertThat(result, is("Links: <a href=\"/thing/101\" title=\"Blah\">Blah</a>, <a href=\"/drwho/ns1ep01\" title=\"Rose\">Rose</a>, <a href=\"/thing/105\" title=\"Blah\">Blah</a>."));
     }
+
+    @Test
+    public void testInternalLinks()
+    {
+        String text = "See <a href=\"internal:thing/103\">this</a> and <img src=\"internal:files/a.png\">.";
+
+        String result = renumberer.renumberPaths(nidMap, text);
+
+        assertThat(result, is("See <a href=\"/thing/104\">this</a> and <img src=\"/files/a.png\">."));
+    }
+
+    @Test
+    public void testUnknownLinkLeftAlone()
+    {
+        String text = "Links: <a href=\"/thing/999\">Gone</a>, <a href=\"/thing/100\">Blah</a>.";
+
+        String result = renumberer.renumberPaths(nidMap, text);
+
+        assertThat(result, is("Links: <a href=\"/thing/999\">Gone</a>, <a href=\"/thing/101\">Blah</a>."));
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import au.com.shawware.drupal.MigrationManifest.Kind;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+/**
+ * Verify that deltas between migration runs are found.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class MigrationDeltaTest
+{
+    @Test
+    public void testDelta()
+        throws Exception
+    {
+        Map<String, Node> nodes = new HashMap<>();
+        nodes.put("10", new Node("10", "story", "1", "100", "200", "Ten"));
+        nodes.put("11", new Node("11", "story", "1", "100", "200", "Eleven"));
+        nodes.put("12", new Node("12", "story", "1", "100", "200", "Twelve"));
+        nodes.values().forEach(node -> node.setBody("Body"));
+
+        MigrationManifest first = MigrationManifest.describe(nodes, Map.of(), Map.of(), Map.of());
+        first.setIds(Kind.NODE, Map.of("10", "3", "11", "4", "12", "5"), null);
+
+        Path file = Files.createTempFile("manifest", ".bin");
+        try
+        {
+            first.write(file);
+            MigrationManifest previous = MigrationManifest.read(file).get();
+
+            assertThat(previous.getIdMap(Kind.NODE), is(Map.of("10", "3", "11", "4", "12", "5")));
+            assertThat(previous.getNextId(Kind.NODE), is(6));
+
+            Node changed = new Node("11", "story", "1", "100", "200", "Eleven");
+            changed.setBody("Edited without touching the changed time");
+            nodes.put("11", changed);
+            nodes.remove("12");
+            nodes.put("13", new Node("13", "story", "1", "300", "300", "Thirteen"));
+            nodes.get("13").setBody("Body");
+
+            DataRenumberer renumberer = new DataRenumberer().withPrevious(previous);
+            MigrationManifest current = MigrationManifest.describe(nodes, Map.of(), Map.of(), Map.of());
+            renumberer.renumberContent(3, nodes, new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>());
+            current.setIds(Kind.NODE, renumberer.getNidMap(), previous);
+
+            assertThat(renumberer.getNidMap(), is(Map.of("10", "3", "11", "4", "13", "6")));
+
+            MigrationDelta delta = MigrationDelta.between(previous, current);
+
+            assertThat(delta.getUpdated(Kind.NODE), is(Set.of("4", "6")));
+            assertThat(delta.getDeleted(Kind.NODE), is(Set.of("5")));
+            assertThat(current.getNextId(Kind.NODE), is(7));
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testRevisionsOfDeletedNodes()
+    {
+        Map<String, Node> nodes = new HashMap<>();
+        nodes.put("10", new Node("10", "story", "1", "100", "200", "Ten"));
+        nodes.get("10").setBody("Body");
+
+        ContentType story = new ContentType("story");
+        story.addField(new Field("ref", "nodereference"));
+
+        DataRenumberer renumberer = new DataRenumberer();
+        renumberer.renumberContent(3, nodes, new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+        RevisionMigrator history = new RevisionMigrator("uhm_", "db", "d9_", Map.of("story", story), nodes, renumberer, new SqlGenerator())
+                .withUpsert(true)
+                .withUpdated(Set.of("3"))
+                .withDeleted(Set.of("5", "4"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        history.migrate(handler -> handler.addRow("uhm_node_revision",
+                Map.of("nid", "10", "vid", "20", "uid", "1", "title", "Ten", "log", "", "timestamp", "200", "comment", "2")),
+                new PrintStream(output, true, StandardCharsets.UTF_8));
+        String sql = output.toString(StandardCharsets.UTF_8);
+
+        assertThat(sql.contains("DELETE FROM `d9_node_revision` WHERE `nid` IN (4, 5);"), is(true));
+        assertThat(sql.contains("DELETE FROM `d9_node_field_revision` WHERE `nid` IN (4, 5);"), is(true));
+        assertThat(sql.contains("DELETE FROM `d9_node_revision__comment` WHERE `entity_id` IN (4, 5);"), is(true));
+        assertThat(sql.contains("DELETE FROM `d9_node_revision__body` WHERE `entity_id` IN (4, 5);"), is(true));
+        assertThat(sql.contains("DELETE FROM `d9_node_revision__field_ref` WHERE `entity_id` IN (4, 5);"), is(true));
+        assertThat(sql.indexOf("DELETE FROM `d9_node_revision`") < sql.indexOf("INSERT INTO `d9_node_revision`"), is(true));
+    }
+}
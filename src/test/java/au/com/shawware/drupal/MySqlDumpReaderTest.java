@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify the reading of mysqldump files.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class MySqlDumpReaderTest
+{
+    private static final String DUMP =
+            "-- MySQL dump 10.13\n" +
+            "/*!40101 SET NAMES utf8mb4 */;\n" +
+            "USE `drupal`;\n" +
+            "DROP TABLE IF EXISTS `node`;\n" +
+            "CREATE TABLE `node` (\n" +
+            "  `nid` int(10) unsigned NOT NULL AUTO_INCREMENT,\n" +
+            "  `type` varchar(32) NOT NULL DEFAULT '' COMMENT 'The type, eg. (story, page)',\n" +
+            "  `title` varchar(255) NOT NULL DEFAULT '',\n" +
+            "  PRIMARY KEY (`nid`),\n" +
+            "  KEY `node_type` (`type`(4))\n" +
+            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;\n" +
+            "INSERT INTO `node` VALUES (1,'story','It\\'s a \"test\"'),(2,'page','Line 1\\r\\nLine 2'),\n" +
+            "(3,'story','Don''t \\\\ stop\\0');\n" +
+            "INSERT INTO `node` VALUES (4,_binary 'page',NULL);\n" +
+            "CREATE TABLE `cache` (`cid` varchar(255) NOT NULL, `data` longblob);\n" +
+            "INSERT INTO `cache` VALUES ('a','x;y'),('b','(z)'),('c','it\\'s; ''a'';\\\\'),('d','\\\\');\n" +
+            "INSERT INTO `url_alias` (`pid`, `source`) VALUES (7,'node/1');\n";
+
+    private Map<String, List<Map<String, String>>> tables;
+    private List<String> events;
+
+    @Before
+    public void setUp()
+    {
+        tables = new HashMap<>();
+        events = new ArrayList<>();
+    }
+
+    @Test
+    public void testRowsAndEscapes()
+        throws IOException
+    {
+        read(TableSelection.all());
+
+        List<Map<String, String>> nodes = tables.get("node");
+        assertThat(nodes.size(), is(4));
+        assertThat(nodes.get(0).get("title"), is("It's a \"test\""));
+        assertThat(nodes.get(1).get("title"), is("Line 1\r\nLine 2"));
+        assertThat(nodes.get(2).get("title"), is("Don't \\ stop\0"));
+        assertThat(nodes.get(3).get("type"), is("page"));
+        assertThat(nodes.get(3).get("title"), is(nullValue()));
+        assertThat(nodes.get(3).containsKey("title"), is(true));
+
+        assertThat(tables.get("cache").get(0).get("data"), is("x;y"));
+        assertThat(tables.get("cache").get(1).get("data"), is("(z)"));
+
+        assertThat(tables.get("url_alias").get(0).get("source"), is("node/1"));
+
+        assertThat(events, is(List.of(
+                "start drupal.node", "end node",
+                "start drupal.cache", "end cache",
+                "start drupal.url_alias", "end url_alias"
+            )));
+    }
+
+    @Test
+    public void testSelectionAndProjection()
+        throws IOException
+    {
+        read(new TableSelection().include("node", "nid", "title").include("url_alias", "pid"));
+
+        assertThat(tables.size(), is(2));
+        Map<String, String> node = tables.get("node").get(0);
+        assertThat(node.size(), is(2));
+        assertThat(node.get("nid"), is("1"));
+        assertThat(node.containsKey("type"), is(false));
+
+        // The skipped types include a character set introducer.
+        Map<String, String> last = tables.get("node").get(3);
+        assertThat(last.get("nid"), is("4"));
+        assertThat(last.get("title"), is(nullValue()));
+        assertThat(tables.get("node").get(2).get("title"), is("Don't \\ stop\0"));
+
+        // The skipped cache rows hold quotes, escapes and semicolons.
+        assertThat(tables.get("url_alias").size(), is(1));
+        assertThat(tables.get("url_alias").get(0).get("pid"), is("7"));
+    }
+
+    private void read(TableSelection selection)
+        throws IOException
+    {
+        MySqlDumpReader reader = new MySqlDumpReader(selection, null);
+
+        reader.parse(new StringReader(DUMP), new RawRowHandler()
+        {
+            @Override
+            public void startTable(String database, String tableName)
+            {
+                events.add("start " + database + "." + tableName);
+                tables.put(tableName, new ArrayList<>());
+            }
+
+            @Override
+            public void addRow(String tableName, Map<String, String> row)
+            {
+                tables.get(tableName).add(row);
+            }
+
+            @Override
+            public void endTable(String tableName)
+            {
+                events.add("end " + tableName);
+            }
+        });
+    }
+}
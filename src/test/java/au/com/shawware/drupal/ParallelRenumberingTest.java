@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+/**
+ * Verify that renumbering on a pool gives the same results as renumbering serially.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class ParallelRenumberingTest
+{
+    private static final int NODES = 3000; // Enough values and aliases to be split
+    private static final int LONG_BODY = 100_000; // Characters, enough to be split on its own
+
+    @Test
+    public void testSameAsSerial()
+    {
+        Content serial = new Content();
+        new DataRenumberer().renumberContent(3, serial.nodes, serial.values, serial.files, serial.imageMap, serial.aliases);
+
+        Content parallel = new Content();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            new DataRenumberer()
+                    .withPool(pool)
+                    .renumberContent(3, parallel.nodes, parallel.values, parallel.files, parallel.imageMap, parallel.aliases);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        assertThat(parallel.describeNodes(), is(serial.describeNodes()));
+        assertThat(parallel.describeValues(), is(serial.describeValues()));
+        assertThat(parallel.describeAliases(), is(serial.describeAliases()));
+        assertThat(serial.describeNodes().get("3"), is("Link to <a href=\"/thing/4\">next</a> (null), thing/3"));
+    }
+
+    /**
+     * The content to renumber, built afresh for each run as it is renumbered in place.
+     * Each node links to the next, and every tenth node has a long body.
+     */
+    private static class Content
+    {
+        private final Map<String, Node> nodes = new HashMap<>();
+        private final Map<String, List<FieldValue>> values = new HashMap<>();
+        private final Map<String, File> files = new HashMap<>();
+        private final Map<String, String> imageMap = new HashMap<>();
+        private final Map<String, Alias> aliases = new HashMap<>();
+
+        Content()
+        {
+            Field ref = new Field("ref", "nodereference");
+            Field text = new Field("text", "text");
+            List<FieldValue> refs = new ArrayList<>();
+            List<FieldValue> texts = new ArrayList<>();
+
+            for (int i = 0; i < NODES; i++)
+            {
+                String nid = String.valueOf(10 + (2 * i));
+                String next = String.valueOf(12 + (2 * i));
+
+                Node node = new Node(nid, "story", "1", "100", "200", "Node " + nid);
+                String body = "Link to <a href=\"/thing/" + next + "\">next</a>";
+                node.setBody(((i % 10) == 9) ? body + " ".repeat(LONG_BODY) + body : body);
+                node.setAlias("thing/" + nid);
+                nodes.put(nid, node);
+
+                refs.add(new FieldValue(nid, "0", ref, next));
+                texts.add(new FieldValue(nid, "0", text, "Text of " + nid));
+
+                String pid = String.valueOf(1000 + i);
+                aliases.put(pid, new Alias(pid, "node/" + nid, "thing/" + nid));
+            }
+
+            values.put("ref", refs);
+            values.put("text", texts);
+        }
+
+        Map<String, String> describeNodes()
+        {
+            Map<String, String> description = new TreeMap<>();
+            nodes.values().forEach(node -> description.put(node.getId(),
+                    node.getBody() + " (" + node.getSummary().orElse(null) + "), " + node.getAlias().orElse(null)));
+            return description;
+        }
+
+        Map<String, List<String>> describeValues()
+        {
+            Map<String, List<String>> description = new TreeMap<>();
+            values.forEach((field, fieldValues) -> {
+                List<String> list = new ArrayList<>();
+                fieldValues.forEach(value -> list.add(value.toString()));
+                description.put(field, list);
+            });
+            return description;
+        }
+
+        Map<String, String> describeAliases()
+        {
+            Map<String, String> description = new TreeMap<>();
+            aliases.values().forEach(alias -> description.put(alias.getId(), alias.toString()));
+            return description;
+        }
+    }
+}
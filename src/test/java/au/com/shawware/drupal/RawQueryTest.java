@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+/**
+ * Verify the queries over raw tables.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class RawQueryTest
+{
+    private final RawTable images = table("image",
+            Map.of("nid", "1", "fid", "10", "image_size", "_original"),
+            Map.of("nid", "1", "fid", "11", "image_size", "thumbnail"),
+            Map.of("nid", "2", "fid", "12", "image_size", "_original"),
+            Map.of("nid", "9", "fid", "13", "image_size", "_original")
+        );
+
+    private final Map<String, String> titles = Map.of(
+            "1", "One",
+            "2", "Two"
+        );
+
+    @Test
+    public void testFilterAndProject()
+    {
+        List<Map<String, String>> rows = RawQuery.scan(images)
+                .where("image_size", "_original"::equals)
+                .select("fid")
+                .rows()
+                .collect(toList());
+
+        assertThat(rows, is(List.of(Map.of("fid", "10"), Map.of("fid", "12"), Map.of("fid", "13"))));
+    }
+
+    @Test
+    public void testJoins()
+    {
+        List<String> matched = new ArrayList<>();
+        List<String> unmatched = new ArrayList<>();
+
+        RawQuery.scan(images)
+                .where("image_size", "_original"::equals)
+                .join("nid", titles,
+                    (title, image) -> matched.add(image.get("fid") + ":" + title),
+                    image -> unmatched.add(image.get("fid"))
+                );
+
+        assertThat(matched, is(List.of("10:One", "12:Two")));
+        assertThat(unmatched, is(List.of("13")));
+
+        matched.clear();
+        RawQuery.scan(images)
+                .join("fid", Map.of("10", "a", "11", "b"), (value, image) -> matched.add(value), image -> {});
+
+        assertThat(matched, is(List.of("a", "b")));
+    }
+
+    @SafeVarargs
+    private static RawTable table(String name, Map<String, String>... rows)
+    {
+        return new RawTable(null, name, "table", List.of(rows));
+    }
+}
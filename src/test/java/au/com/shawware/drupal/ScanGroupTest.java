@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2022 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.drupal;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+/**
+ * Verify that a scan group feeds its consumers, whether scanned or streamed.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class ScanGroupTest
+{
+    private static final String DUMP =
+            "INSERT INTO `uhm_url_alias` (`pid`, `source`, `alias`) VALUES (1,'node/10','thing/10'),(2,'node/12','thing/12');\n" +
+            "INSERT INTO `uhm_node` (`nid`, `type`) VALUES (10,'story');\n" +
+            "INSERT INTO `url_alias` (`pid`, `source`, `alias`) VALUES (3,'node/14','thing/14');\n";
+
+    @Test
+    public void testStreamedRows()
+        throws IOException
+    {
+        List<String> paths = new ArrayList<>();
+        List<String> aliases = new ArrayList<>();
+
+        ScanGroup group = new ScanGroup("uhm_")
+                .register("url_alias", row -> paths.add(row.get("source")))
+                .register("url_alias", row -> aliases.add(row.get("alias")));
+
+        assertThat(group.getTableNames(), is(Set.of("uhm_url_alias")));
+
+        TableSelection selection = new TableSelection()
+                .include("uhm_url_alias", "pid", "source", "alias")
+                .include("uhm_node", "nid", "type")
+                .include("url_alias", "pid", "source", "alias");
+        new MySqlDumpReader(selection, null).parse(new StringReader(DUMP), group);
+
+        assertThat(paths, is(List.of("node/10", "node/12")));
+        assertThat(aliases, is(List.of("thing/10", "thing/12")));
+    }
+
+    @Test
+    public void testScannedRows()
+    {
+        List<String> paths = new ArrayList<>();
+
+        ScanGroup group = new ScanGroup("uhm_")
+                .register("url_alias", row -> paths.add(row.get("source")));
+
+        group.scan("uhm_url_alias", List.of(Map.of("source", "node/10")));
+        group.scan("uhm_node", List.of(Map.of("source", "node/12")));
+
+        assertThat(paths, is(List.of("node/10")));
+    }
+}